@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The generated inputs of the benchmarks
+ */
+final class BenchmarkData {
+
+    static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param size the number of properties
+     * @return properties content with comments, continuation lines and references to the system variables
+     */
+    static String propertiesContent(int size) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                content.append("# Section ").append(i / 10).append("\n");
+            }
+            content.append("PROPERTY_").append(i).append("=");
+            if (i % 3 == 0) {
+                content.append("${HOME}/tools/").append(i);
+            } else if (i % 7 == 0) {
+                content.append("first part ").append(i).append(" \\\n    second part");
+            } else {
+                content.append("value-").append(i);
+            }
+            content.append("\n");
+        }
+        return content.toString();
+    }
+
+    /**
+     * @param depth the chain length
+     * @return VAR_0=${HOME}, VAR_1=${VAR_0}/1 ... VAR_n=${VAR_n-1}/n, in reverse order
+     */
+    static Map<String, String> referenceChain(int depth) {
+        Map<String, String> chain = new LinkedHashMap<String, String>();
+        for (int i = depth - 1; i > 0; i--) {
+            chain.put("VAR_" + i, "${VAR_" + (i - 1) + "}/" + i);
+        }
+        chain.put("VAR_0", "${HOME}");
+        return chain;
+    }
+
+    /**
+     * @return a typical node environment
+     */
+    static Map<String, String> systemVariables() {
+        Map<String, String> variables = new TreeMap<String, String>(System.getenv());
+        variables.put("HOME", "/home/jenkins");
+        for (int i = 0; i < 50; i++) {
+            variables.put("SYSTEM_VARIABLE_" + i, "/usr/local/lib/system-" + i);
+        }
+        return variables;
+    }
+}
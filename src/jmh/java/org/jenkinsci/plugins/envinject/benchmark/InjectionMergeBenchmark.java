@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import hudson.util.StreamTaskListener;
+import org.jenkinsci.plugins.envinject.EnvInjectInfo;
+import org.jenkinsci.plugins.envinject.EnvInjectLayeredVars;
+import org.jenkinsci.plugins.envinject.EnvInjectLogger;
+import org.jenkinsci.plugins.envinject.service.EnvInjectAgentInjector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The merge sequence of the build wrapper setUp: node variables, build variables and properties,
+ * merged and resolved on the node, then overlaid on the node variables known by the master.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InjectionMergeBenchmark {
+
+    private static final String NODE_NAME = "benchmark";
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private EnvInjectAgentInjector injector;
+
+    @Setup
+    public void setUp() throws Throwable {
+        EnvInjectInfo info = new EnvInjectInfo(null, BenchmarkData.propertiesContent(size));
+        EnvInjectLogger logger = new EnvInjectLogger(new StreamTaskListener(BenchmarkData.NULL_OUTPUT_STREAM));
+        Map<String, String> buildVariables = BenchmarkData.referenceChain(10);
+
+        //The first build sends the node variables to the master, the next ones only their digest
+        EnvInjectAgentInjector firstInjector = new EnvInjectAgentInjector(info, buildVariables, null, logger);
+        EnvInjectAgentInjector.getVariables(NODE_NAME, firstInjector.call());
+        injector = new EnvInjectAgentInjector(info, buildVariables, EnvInjectAgentInjector.getKnownSystemDigest(NODE_NAME), logger);
+    }
+
+    @Benchmark
+    public EnvInjectLayeredVars setUpMerge() throws Throwable {
+        return EnvInjectAgentInjector.getVariables(NODE_NAME, injector.call());
+    }
+}
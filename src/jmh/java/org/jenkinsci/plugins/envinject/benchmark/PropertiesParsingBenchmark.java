@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import org.jenkinsci.plugins.envinject.service.PropertiesFileService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the properties content and of the properties files, small and large.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesParsingBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int size;
+
+    private String content;
+
+    private File file;
+
+    private final PropertiesFileService service = new PropertiesFileService();
+
+    @Setup
+    public void setUp() throws IOException {
+        content = BenchmarkData.propertiesContent(size);
+        file = File.createTempFile("envinject-benchmark", ".properties");
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content.getBytes("ISO-8859-1"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Map<String, String> content() throws Exception {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        service.loadVarsFromPropertiesContent(content, result);
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, String> file() throws Exception {
+        return service.getVarsFromPropertiesFilePath(file.getAbsolutePath(), null);
+    }
+}
@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import hudson.util.StreamTaskListener;
+import org.jenkinsci.plugins.envinject.EnvInjectInfo;
+import org.jenkinsci.plugins.envinject.EnvInjectLogger;
+import org.jenkinsci.plugins.envinject.service.PropertiesVariablesRetriever;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The properties retrieval run on the node (variables substitution and parsing of the properties content).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesRetrieverBenchmark {
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private PropertiesVariablesRetriever retriever;
+
+    @Setup
+    public void setUp() throws Exception {
+        EnvInjectInfo info = new EnvInjectInfo(null, BenchmarkData.propertiesContent(size));
+        EnvInjectLogger logger = new EnvInjectLogger(new StreamTaskListener(BenchmarkData.NULL_OUTPUT_STREAM));
+        retriever = new PropertiesVariablesRetriever(info, BenchmarkData.systemVariables(), logger);
+    }
+
+    @Benchmark
+    public Map<String, String> call() throws Throwable {
+        return retriever.call();
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import hudson.EnvVars;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVariablesResolver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolution of deep reference chains (VAR_n=${VAR_n-1}/n), with EnvVars.resolve and with the injection resolver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariablesResolutionBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int depth;
+
+    private Map<String, String> systemVariables;
+
+    private Map<String, String> chain;
+
+    @Setup
+    public void setUp() {
+        systemVariables = BenchmarkData.systemVariables();
+        chain = BenchmarkData.referenceChain(depth);
+    }
+
+    @Benchmark
+    public Map<String, String> envVarsResolve() {
+        Map<String, String> variables = new TreeMap<String, String>(systemVariables);
+        variables.putAll(chain);
+        EnvVars.resolve(variables);
+        return variables;
+    }
+
+    @Benchmark
+    public Map<String, String> injectionResolver() {
+        return new EnvInjectVariablesResolver(systemVariables).addLayer(chain);
+    }
+}
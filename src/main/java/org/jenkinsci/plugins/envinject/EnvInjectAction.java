@@ -1,25 +1,299 @@
 package org.jenkinsci.plugins.envinject;
 
-import hudson.model.Action;
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.Run;
+import hudson.model.RunAction;
+import org.jenkinsci.plugins.envinject.service.EnvInjectBuildVarsStore;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMaskingOutputStream;
 import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * The injected variables are stored in a file of the build directory and read on demand,
+ * the build record only keeps the action.
+ * The variables are published as immutable snapshots, the readers don't lock while a build step adds variables.
+ * The action also keeps the durations of the injection phases, exported in the build API.
+ * The secret variables are masked in the pages of the action, they are only given as is to the build environment.
+ * The build of the action is set when the action is created or attached, and by the item listener for the loaded builds.
+ *
  * @author Gregory Boissinot
  */
-public class EnvInjectAction implements Action, StaplerProxy {
+@ExportedBean
+public class EnvInjectAction implements EnvironmentContributingAction, RunAction, StaplerProxy {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectAction.class.getName());
 
     public static String URL_NAME = "injectedEnvVarResult";
 
-    private final Map<String, String> envMap;
+    /**
+     * The injected variables of the records written by the previous versions
+     * (or of the builds whose variables file can't be written).
+     * They are moved to the variables file when the build is loaded or on first access, then the build record is saved.
+     */
+    private Map<String, String> envMap;
+
+    /**
+     * The durations of the injection phases of all the steps, replaced as a whole on each update
+     */
+    private volatile List<EnvInjectPhaseTimer.Phase> timings;
+
+    /**
+     * The names of the secret variables, replaced as a whole on each update
+     */
+    private volatile Set<String> secretNames;
+
+    /**
+     * The last snapshot of the variables, replaced as a whole on each update so the readers never lock
+     */
+    private transient volatile SoftReference<EnvInjectVarList> current;
+
+    /**
+     * The build of this action
+     */
+    private transient volatile AbstractBuild<?, ?> build;
+
+    public EnvInjectAction(AbstractBuild<?, ?> build, Map<String, String> envMap) {
+        this(build, envMap, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param build       the build
+     * @param envMap      the injected variables
+     * @param secretNames the names of the secret variables, known before the variables are written and indexed
+     */
+    public EnvInjectAction(AbstractBuild<?, ?> build, Map<String, String> envMap, Set<String> secretNames) {
+        this.build = build;
+        addSecretNames(secretNames);
+        saveEnvMap(build, envMap);
+    }
+
+    private EnvInjectVarList saveEnvMap(AbstractBuild<?, ?> build, Map<String, String> variables) {
+        EnvInjectVarList varList;
+        try {
+            varList = EnvInjectBuildVarsStore.getInstance().save(build, variables, secretNames);
+            envMap = null;
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Can't write the injected variables file. The variables are kept in the build record.", ioe);
+            envMap = new HashMap<String, String>(variables);
+            varList = new EnvInjectVarList(variables);
+        }
+        current = new SoftReference<EnvInjectVarList>(varList);
+        return varList;
+    }
+
+    /**
+     * Gets the immutable snapshot of the injected variables
+     *
+     * @param build the build of this action
+     * @return the injected variables
+     */
+    public EnvInjectVarList getVarList(AbstractBuild<?, ?> build) {
+        SoftReference<EnvInjectVarList> reference = current;
+        EnvInjectVarList varList = (reference == null) ? null : reference.get();
+        if (varList != null) {
+            return varList;
+        }
+        return loadVarList(build);
+    }
+
+    private synchronized EnvInjectVarList loadVarList(AbstractBuild<?, ?> build) {
+        SoftReference<EnvInjectVarList> reference = current;
+        EnvInjectVarList varList = (reference == null) ? null : reference.get();
+        if (varList != null) {
+            return varList;
+        }
+        if (envMap != null) {
+            //Migrate the variables of the build record
+            return migrate(build);
+        }
+        try {
+            varList = EnvInjectBuildVarsStore.getInstance().load(build);
+        } catch (IOException ioe) {
+            //The record is reported as corrupt, not as an empty environment
+            LOGGER.log(Level.WARNING, String.format("Can't read the injected variables of the build '%s'.", build.getFullDisplayName()), ioe);
+            varList = new EnvInjectVarList(Collections.<String, String>emptyMap(),
+                    String.format("The injected variables of this build can't be read, its variables file is corrupt: %s", ioe.getMessage()));
+        }
+        if (varList == null) {
+            varList = new EnvInjectVarList(Collections.<String, String>emptyMap());
+        }
+        current = new SoftReference<EnvInjectVarList>(varList);
+        return varList;
+    }
+
+    /**
+     * Moves the variables of a build record written by a previous version to the variables file
+     * and saves the build record without them
+     */
+    private synchronized EnvInjectVarList migrate(AbstractBuild<?, ?> build) {
+        EnvInjectVarList varList = saveEnvMap(build, envMap);
+        if (envMap == null) {
+            try {
+                build.save();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, String.format("Can't save the build '%s' after the migration of its injected variables.", build.getFullDisplayName()), ioe);
+            }
+        }
+        return varList;
+    }
+
+    /**
+     * Attaches a loaded build to its action
+     *
+     * @param build the loaded build of this action
+     */
+    void attach(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    /**
+     * Migrates the variables of the build record if it has been written by a previous version
+     */
+    void migrate() {
+        AbstractBuild<?, ?> owner = build;
+        if (envMap != null && owner != null) {
+            loadVarList(owner);
+        }
+    }
+
+    public void onLoad() {
+        //The loaded builds are attached by the item listener, the build isn't given here
+    }
+
+    public void onAttached(Run r) {
+        if (r instanceof AbstractBuild) {
+            build = (AbstractBuild<?, ?>) r;
+        }
+    }
+
+    public void onBuildComplete() {
+    }
+
+    /**
+     * Gets the injected variables of a build
+     *
+     * @param build the build of this action
+     * @return the unmodifiable injected variables
+     */
+    public Map<String, String> getEnvMap(AbstractBuild<?, ?> build) {
+        return getVarList(build).getEnvMap();
+    }
+
+    public synchronized void overrideAll(AbstractBuild<?, ?> build, Map<String, String> all) {
+        overrideAll(build, all, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param build       the build of this action
+     * @param all         the variables to add or override
+     * @param secretNames the names of the secret variables among them
+     */
+    public synchronized void overrideAll(AbstractBuild<?, ?> build, Map<String, String> all, Set<String> secretNames) {
+        addSecretNames(secretNames);
+        Map<String, String> variables = new HashMap<String, String>(getEnvMap(build));
+        variables.putAll(all);
+        saveEnvMap(build, variables);
+    }
+
+    private synchronized void addSecretNames(Set<String> names) {
+        if (names.isEmpty() || (secretNames != null && secretNames.containsAll(names))) {
+            return;
+        }
+        Set<String> result = new TreeSet<String>();
+        if (secretNames != null) {
+            result.addAll(secretNames);
+        }
+        result.addAll(names);
+        secretNames = result;
+    }
+
+    /**
+     * Registers the secret variables of an injection step.
+     * Their values are masked in the console of the build from now on and in the pages of the action.
+     * The secret names must also be given when the variables are written, so their values are not indexed.
+     *
+     * @param build   the build of this action
+     * @param secrets the secret variables
+     * @param logger  the build logger
+     */
+    public synchronized void addSecrets(AbstractBuild<?, ?> build, Map<String, String> secrets, EnvInjectLogger logger) throws IOException {
+        if (secrets.isEmpty()) {
+            return;
+        }
+        addSecretNames(secrets.keySet());
+        if (!EnvInjectMaskingOutputStream.addSecrets(build, secrets.values())) {
+            logger.info("The secret variables are not masked in the console. Add the 'Mask the injected secret variables in the console output' build wrapper to the job.");
+        }
+    }
+
+    /**
+     * Gets the injected variables to display, the values of the secret variables are masked
+     *
+     * @param build the build of this action
+     * @return the injected variables
+     */
+    public EnvInjectVarList getDisplayVarList(AbstractBuild<?, ?> build) {
+        EnvInjectVarList varList = getVarList(build);
+        Set<String> names = secretNames;
+        if (names == null || names.isEmpty()) {
+            return varList;
+        }
+        Map<String, String> variables = new HashMap<String, String>(varList.getEnvMap());
+        for (String name : names) {
+            if (variables.containsKey(name)) {
+                variables.put(name, EnvInjectMaskingOutputStream.MASK);
+            }
+        }
+        return new EnvInjectVarList(variables);
+    }
+
+    /**
+     * Records the durations of the injection phases of a step
+     *
+     * @param timer the timer of the step
+     */
+    public synchronized void addTimings(EnvInjectPhaseTimer timer) {
+        List<EnvInjectPhaseTimer.Phase> result = new ArrayList<EnvInjectPhaseTimer.Phase>();
+        if (timings != null) {
+            result.addAll(timings);
+        }
+        result.addAll(timer.getPhases());
+        timings = result;
+    }
 
-    public EnvInjectAction(Map<String, String> envMap) {
-        this.envMap = envMap;
+    /**
+     * @return the durations of the injection phases, in the order of the steps
+     */
+    @Exported
+    public List<EnvInjectPhaseTimer.Phase> getTimings() {
+        List<EnvInjectPhaseTimer.Phase> result = timings;
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(result);
     }
 
-    public void overrideAll(Map<String, String> all) {
-        envMap.putAll(all);
+    /**
+     * Contributes the injected variables to the build environment only.
+     * Nothing is written to the node wide environment, so concurrent builds on the same node do not see each other.
+     */
+    public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        env.putAll(getEnvMap(build));
     }
 
     public String getIconFileName() {
@@ -35,6 +309,10 @@ public class EnvInjectAction implements Action, StaplerProxy {
     }
 
     public Object getTarget() {
-        return new EnvInjectVarList(envMap);
+        AbstractBuild<?, ?> owner = build;
+        if (owner == null) {
+            return new EnvInjectVarList(Collections.<String, String>emptyMap(), "The build of the injected variables isn't loaded yet.");
+        }
+        return getDisplayVarList(owner);
     }
 }
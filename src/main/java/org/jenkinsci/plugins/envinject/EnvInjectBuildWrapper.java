@@ -1,6 +1,5 @@
 package org.jenkinsci.plugins.envinject;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -8,19 +7,22 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
-import hudson.remoting.Callable;
+import hudson.model.Run;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import net.sf.json.JSONObject;
-import org.jenkinsci.plugins.envinject.service.EnvInjectMasterEnvVarsSetter;
+import org.jenkinsci.plugins.envinject.service.EnvInjectAgentInjector;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMaskingOutputStream;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
 import org.jenkinsci.plugins.envinject.service.EnvInjectScriptExecutorService;
-import org.jenkinsci.plugins.envinject.service.PropertiesVariablesRetriever;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Gregory Boissinot
@@ -39,48 +41,53 @@ public class EnvInjectBuildWrapper extends BuildWrapper implements Serializable
     }
 
     @Override
-    public Environment setUp(AbstractBuild build, final Launcher launcher, final BuildListener listener) throws IOException, InterruptedException {
+    public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) throws IOException, InterruptedException, Run.RunnerAbortedException {
+        return EnvInjectMaskingOutputStream.decorate(build, logger);
+    }
 
-        final Map<String, String> resultVariables = new HashMap<String, String>();
+    @Override
+    public Environment setUp(AbstractBuild build, final Launcher launcher, final BuildListener listener) throws IOException, InterruptedException {
 
         EnvInjectLogger logger = new EnvInjectLogger(listener);
 
         try {
 
+            EnvInjectPhaseTimer timer = new EnvInjectPhaseTimer("Build wrapper");
             final FilePath ws = build.getWorkspace();
-
-            //Add the current system env vars
-            ws.act(new Callable<Void, Throwable>() {
-
-                public Void call() throws Throwable {
-                    resultVariables.putAll(EnvVars.masterEnvVars);
-                    return null;
-                }
-            });
-
-            //Always keep build variables (such as parameter variables).
-            resultVariables.putAll(getAndAddBuildVariables(build));
-
-            //Get env vars from properties info.
-            //File information path can be relative to the workspace
-            Map<String, String> envMap = ws.act(new PropertiesVariablesRetriever(info, resultVariables, logger));
-            resultVariables.putAll(envMap);
-
-            //Execute script info
-            EnvInjectScriptExecutorService scriptExecutorService = new EnvInjectScriptExecutorService(info, resultVariables, ws, launcher, logger);
-            scriptExecutorService.executeScriptFromInfoObject();
-
-            //Resolve vars each other
-            EnvVars.resolve(resultVariables);
-
-            //Set the new build variables map
-            build.getWorkspace().act(new EnvInjectMasterEnvVarsSetter(new EnvVars(resultVariables)));
-
-            //Add or get the existing action to add new env vars
-            addEnvVarsToEnvInjectBuildAction(build, resultVariables);
-
+            Map<String, String> buildVariables = getAndAddBuildVariables(build);
+            timer.mark("Build variables");
+
+            //Read the node env vars, get env vars from properties info (file information path can be relative to the workspace),
+            //merge them with the build variables (such as parameter variables) and resolve them in one call to the node
+            String nodeName = build.getBuiltOnStr();
+            EnvInjectAgentInjector.Result result = ws.act(new EnvInjectAgentInjector(info, buildVariables, EnvInjectAgentInjector.getKnownSystemDigest(nodeName), ws.getRemote(), logger));
+            timer.markRemote("Remoting", result.getTimings());
+            EnvInjectLayeredVars variables = EnvInjectAgentInjector.getVariables(nodeName, result);
+
+            //Mask the secret variables before the script runs
+            EnvInjectMaskingOutputStream.addSecrets(build, info.getSecrets(variables).values());
+
+            //Execute script info, the variables exported by the script are already expanded
+            EnvInjectScriptExecutorService scriptExecutorService = new EnvInjectScriptExecutorService(info, variables, ws, launcher, logger);
+            variables = variables.overlay("script", scriptExecutorService.executeScriptFromInfoObject());
+            timer.mark("Script");
+
+            //Add or get the existing action to add new env vars (contributed to this build only)
+            Map<String, String> secrets = info.getSecrets(variables);
+            EnvInjectAction envInjectAction = addEnvVarsToEnvInjectBuildAction(build, variables, secrets.keySet());
+            envInjectAction.addSecrets(build, secrets, logger);
+            timer.mark("Save");
+            envInjectAction.addTimings(timer);
+            EnvInjectMetrics.getInstance().recordInjection(build.getBuiltOnStr(), timer, variables.size());
+
+        } catch (InterruptedException ie) {
+            //The build is aborted, the script processes are already killed
+            throw ie;
         } catch (Throwable throwable) {
+            //Abort the build, the build steps don't run with a partial environment
+            listener.getLogger().println("SEVERE ERROR occurs: " + throwable.getMessage());
             build.setResult(Result.FAILURE);
+            return null;
         }
 
         return new EnvironmentImpl();
@@ -104,13 +111,15 @@ public class EnvInjectBuildWrapper extends BuildWrapper implements Serializable
         return result;
     }
 
-    private void addEnvVarsToEnvInjectBuildAction(AbstractBuild<?, ?> build, Map<String, String> envMap) {
+    private EnvInjectAction addEnvVarsToEnvInjectBuildAction(AbstractBuild<?, ?> build, Map<String, String> envMap, Set<String> secretNames) {
         EnvInjectAction envInjectAction = build.getAction(EnvInjectAction.class);
         if (envInjectAction != null) {
-            envInjectAction.overrideAll(envMap);
+            envInjectAction.overrideAll(build, envMap, secretNames);
         } else {
-            build.addAction(new EnvInjectAction(envMap));
+            envInjectAction = new EnvInjectAction(build, envMap, secretNames);
+            build.addAction(envInjectAction);
         }
+        return envInjectAction;
     }
 
     @Extension
@@ -131,6 +140,10 @@ public class EnvInjectBuildWrapper extends BuildWrapper implements Serializable
         public BuildWrapper newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             EnvInjectBuildWrapper wrapper = new EnvInjectBuildWrapper();
             EnvInjectJobPropertyInfo info = req.bindParameters(EnvInjectJobPropertyInfo.class, "envInjectInfoWrapper.");
+            String error = EnvInjectJobPropertyInfo.checkScriptResultCacheTtl(info.getScriptResultCacheTtl(), info.isCaptureScriptEnvironment());
+            if (error != null) {
+                throw new FormException(error, "scriptResultCacheTtl");
+            }
             wrapper.setInfo(info);
             return wrapper;
         }
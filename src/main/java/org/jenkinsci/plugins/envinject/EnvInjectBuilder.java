@@ -1,6 +1,5 @@
 package org.jenkinsci.plugins.envinject;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -8,18 +7,18 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
-import hudson.remoting.Callable;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import net.sf.json.JSONObject;
-import org.jenkinsci.plugins.envinject.service.EnvInjectMasterEnvVarsSetter;
-import org.jenkinsci.plugins.envinject.service.PropertiesVariablesRetriever;
+import org.jenkinsci.plugins.envinject.service.EnvInjectAgentInjector;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Gregory Boissinot
@@ -40,37 +39,28 @@ public class EnvInjectBuilder extends Builder implements Serializable {
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
 
-        final Map<String, String> resultVariables = new HashMap<String, String>();
-
         try {
 
+            EnvInjectPhaseTimer timer = new EnvInjectPhaseTimer("Build step");
             FilePath ws = build.getWorkspace();
-
-            //Add the current system env vars
-            ws.act(new Callable<Void, Throwable>() {
-
-                public Void call() throws Throwable {
-                    resultVariables.putAll(EnvVars.masterEnvVars);
-                    return null;
-                }
-            });
-
-            //Always keep build variables (such as parameter variables).
-            resultVariables.putAll(getAndAddBuildVariables(build));
-
-            //Get env vars from properties info.
-            //File information path can be relative to the workspace
-            Map<String, String> envMap = build.getWorkspace().act(new PropertiesVariablesRetriever(info, resultVariables, new EnvInjectLogger(listener)));
-            resultVariables.putAll(envMap);
-
-            //Resolve vars each other
-            EnvVars.resolve(resultVariables);
-
-            //Set the new build variables map
-            build.getWorkspace().act(new EnvInjectMasterEnvVarsSetter(new EnvVars(resultVariables)));
-
-            //Add or get the existing action to add new env vars
-            addEnvVarsToEnvInjectBuildAction(build, resultVariables);
+            Map<String, String> buildVariables = getAndAddBuildVariables(build);
+            timer.mark("Build variables");
+
+            //Read the node env vars, get env vars from properties info (file information path can be relative to the workspace),
+            //merge them with the build variables (such as parameter variables) and resolve them in one call to the node
+            String nodeName = build.getBuiltOnStr();
+            EnvInjectLogger logger = new EnvInjectLogger(listener);
+            EnvInjectAgentInjector.Result result = ws.act(new EnvInjectAgentInjector(info, buildVariables, EnvInjectAgentInjector.getKnownSystemDigest(nodeName), ws.getRemote(), logger));
+            timer.markRemote("Remoting", result.getTimings());
+            EnvInjectLayeredVars variables = EnvInjectAgentInjector.getVariables(nodeName, result);
+
+            //Add or get the existing action to add new env vars (contributed to this build only)
+            Map<String, String> secrets = info.getSecrets(variables);
+            EnvInjectAction envInjectAction = addEnvVarsToEnvInjectBuildAction(build, variables, secrets.keySet());
+            envInjectAction.addSecrets(build, secrets, logger);
+            timer.mark("Save");
+            envInjectAction.addTimings(timer);
+            EnvInjectMetrics.getInstance().recordInjection(build.getBuiltOnStr(), timer, variables.size());
 
         } catch (Throwable throwable) {
             build.setResult(Result.FAILURE);
@@ -92,13 +82,15 @@ public class EnvInjectBuilder extends Builder implements Serializable {
         return result;
     }
 
-    private void addEnvVarsToEnvInjectBuildAction(AbstractBuild<?, ?> build, Map<String, String> envMap) {
+    private EnvInjectAction addEnvVarsToEnvInjectBuildAction(AbstractBuild<?, ?> build, Map<String, String> envMap, Set<String> secretNames) {
         EnvInjectAction envInjectAction = build.getAction(EnvInjectAction.class);
         if (envInjectAction != null) {
-            envInjectAction.overrideAll(envMap);
+            envInjectAction.overrideAll(build, envMap, secretNames);
         } else {
-            build.addAction(new EnvInjectAction(envMap));
+            envInjectAction = new EnvInjectAction(build, envMap, secretNames);
+            build.addAction(envInjectAction);
         }
+        return envInjectAction;
     }
 
     @Extension
@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.jenkinsci.plugins.envinject.service.EnvInjectNodeEnvironmentCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the cache of the node base environments when the nodes connect and invalidates it
+ * when the nodes disconnect or are reconfigured. Also drops the latency metrics of the deleted nodes.
+ */
+@Extension
+public class EnvInjectComputerListener extends ComputerListener {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectComputerListener.class.getName());
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+        try {
+            EnvInjectNodeEnvironmentCache.getInstance().refresh(c);
+        } catch (IOException ioe) {
+            //The environment is retrieved again at the first build
+            EnvInjectNodeEnvironmentCache.getInstance().invalidate(c);
+            LOGGER.log(Level.WARNING, String.format("Can't retrieve the environment of the node '%s'.", c.getName()), ioe);
+        }
+    }
+
+    @Override
+    public void onOffline(Computer c) {
+        EnvInjectNodeEnvironmentCache.getInstance().invalidate(c);
+    }
+
+    @Override
+    public void onConfigurationChange() {
+        //Notified when a node or the global configuration (and the global node properties) is saved
+        EnvInjectNodeEnvironmentCache.getInstance().invalidateAll();
+
+        //The node list may have changed, the latency metrics of the deleted nodes are dropped
+        List<String> nodeNames = new ArrayList<String>();
+        for (Computer computer : Hudson.getInstance().getComputers()) {
+            nodeNames.add(computer.getName());
+        }
+        EnvInjectMetrics.getInstance().retainNodes(nodeNames);
+    }
+}
@@ -1,9 +1,14 @@
 package org.jenkinsci.plugins.envinject;
 
 import hudson.Util;
+import org.jenkinsci.plugins.envinject.service.EnvInjectSecretNames;
+import org.jenkinsci.plugins.envinject.service.EnvInjectTemplate;
+import org.jenkinsci.plugins.envinject.service.PropertiesContentTemplate;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Gregory Boissinot
@@ -14,10 +19,53 @@ public class EnvInjectInfo implements Serializable {
 
     protected String propertiesContent;
 
-    @DataBoundConstructor
+    protected String propertiesFileEncoding;
+
+    /**
+     * The names of the secret variables, separated by commas or spaces ('*' matches any characters)
+     */
+    protected String secretVariables;
+
+    private transient EnvInjectTemplate propertiesFilePathTemplate;
+
+    private transient PropertiesContentTemplate propertiesContentTemplate;
+
+    private transient EnvInjectSecretNames secretNames;
+
     public EnvInjectInfo(String propertiesFilePath, String propertiesContent) {
+        this(propertiesFilePath, propertiesContent, null);
+    }
+
+    public EnvInjectInfo(String propertiesFilePath, String propertiesContent, String propertiesFileEncoding) {
+        this(propertiesFilePath, propertiesContent, propertiesFileEncoding, null);
+    }
+
+    @DataBoundConstructor
+    public EnvInjectInfo(String propertiesFilePath, String propertiesContent, String propertiesFileEncoding, String secretVariables) {
         this.propertiesFilePath = Util.fixEmpty(propertiesFilePath);
         this.propertiesContent = Util.fixEmpty(propertiesContent);
+        this.propertiesFileEncoding = Util.fixEmptyAndTrim(propertiesFileEncoding);
+        this.secretVariables = Util.fixEmptyAndTrim(secretVariables);
+        compilePropertiesTemplates();
+    }
+
+    /**
+     * Compiles the configuration when the job is loaded, the builds only expand the compiled templates
+     */
+    protected Object readResolve() {
+        compilePropertiesTemplates();
+        return this;
+    }
+
+    private void compilePropertiesTemplates() {
+        propertiesFilePathTemplate = (propertiesFilePath == null) ? null : EnvInjectTemplate.compile(propertiesFilePath);
+        try {
+            propertiesContentTemplate = (propertiesContent == null) ? null : PropertiesContentTemplate.compile(propertiesContent);
+        } catch (EnvInjectException ee) {
+            //The malformed content is reported by the builds
+            propertiesContentTemplate = null;
+        }
+        secretNames = EnvInjectSecretNames.compile(secretVariables);
     }
 
     public String getPropertiesFilePath() {
@@ -28,4 +76,62 @@ public class EnvInjectInfo implements Serializable {
         return propertiesContent;
     }
 
+    public String getPropertiesFileEncoding() {
+        return propertiesFileEncoding;
+    }
+
+    public String getSecretVariables() {
+        return secretVariables;
+    }
+
+    /**
+     * @param name a variable name
+     * @return true if the variable is declared as secret
+     */
+    public boolean isSecret(String name) {
+        EnvInjectSecretNames names = getSecretNames();
+        return names != null && names.matches(name);
+    }
+
+    /**
+     * @return the compiled names of the secret variables, null if there is none
+     */
+    public EnvInjectSecretNames getSecretNames() {
+        if (secretNames == null && secretVariables != null) {
+            secretNames = EnvInjectSecretNames.compile(secretVariables);
+        }
+        return secretNames;
+    }
+
+    /**
+     * @param variables the injected variables
+     * @return the secret variables among them
+     */
+    public Map<String, String> getSecrets(Map<String, String> variables) {
+        Map<String, String> result = new HashMap<String, String>();
+        if (secretVariables == null) {
+            return result;
+        }
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            if (isSecret(entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    public EnvInjectTemplate getPropertiesFilePathTemplate() {
+        if (propertiesFilePathTemplate == null && propertiesFilePath != null) {
+            propertiesFilePathTemplate = EnvInjectTemplate.compile(propertiesFilePath);
+        }
+        return propertiesFilePathTemplate;
+    }
+
+    public PropertiesContentTemplate getPropertiesContentTemplate() throws EnvInjectException {
+        if (propertiesContentTemplate == null && propertiesContent != null) {
+            propertiesContentTemplate = PropertiesContentTemplate.compile(propertiesContent);
+        }
+        return propertiesContentTemplate;
+    }
+
 }
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVarIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the index of the injected variables at startup and keeps it up to date when the jobs are deleted or renamed.
+ * The loaded builds are attached to their action, and the build records written by the previous versions
+ * are migrated in background before the index is built.
+ */
+@Extension
+public class EnvInjectItemListener extends ItemListener {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onLoaded() {
+        //The builds are already loaded, attaching them is cheap
+        final List<EnvInjectAction> actions = new ArrayList<EnvInjectAction>();
+        for (AbstractProject project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            for (Object object : project.getBuilds()) {
+                AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) object;
+                EnvInjectAction action = build.getAction(EnvInjectAction.class);
+                if (action != null) {
+                    action.attach(build);
+                    actions.add(action);
+                }
+            }
+        }
+
+        //The migration and the index are done in background, the startup doesn't wait for them
+        Thread thread = new Thread("EnvInject variables index") {
+            @Override
+            public void run() {
+                for (EnvInjectAction action : actions) {
+                    action.migrate();
+                }
+                EnvInjectVarIndex.getInstance().build();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        EnvInjectVarIndex.getInstance().removeItem(item.getFullName());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onRenamed(Item item, String oldName, String newName) {
+        String fullName = item.getFullName();
+        String parentPrefix = fullName.substring(0, fullName.lastIndexOf('/') + 1);
+        EnvInjectVarIndex index = EnvInjectVarIndex.getInstance();
+        index.removeItem(parentPrefix + oldName);
+
+        //Index the builds under the new name (the job or the jobs of the folder)
+        for (Job job : Hudson.getInstance().getAllItems(Job.class)) {
+            if (job.getFullName().equals(fullName) || job.getFullName().startsWith(fullName + "/")) {
+                index.addJob(job);
+            }
+        }
+    }
+}
@@ -4,7 +4,9 @@ import hudson.Extension;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 /**
@@ -82,6 +84,10 @@ public class EnvInjectJobProperty<T extends Job<?, ?>> extends JobProperty<T> {
             if (onObject != null) {
                 EnvInjectJobProperty envInjectJobProperty = new EnvInjectJobProperty();
                 EnvInjectJobPropertyInfo info = req.bindParameters(EnvInjectJobPropertyInfo.class, "envInjectInfoJobProperty.");
+                String error = EnvInjectJobPropertyInfo.checkScriptResultCacheTtl(info.getScriptResultCacheTtl(), info.isCaptureScriptEnvironment());
+                if (error != null) {
+                    throw new FormException(error, "scriptResultCacheTtl");
+                }
                 envInjectJobProperty.setInfo(info);
                 envInjectJobProperty.setOn(true);
                 if (onObject instanceof JSONObject) {
@@ -93,6 +99,14 @@ public class EnvInjectJobProperty<T extends Job<?, ?>> extends JobProperty<T> {
 
             return null;
         }
+
+        /**
+         * Checks the script result cache TTL of the job property and of the build wrapper
+         */
+        public FormValidation doCheckScriptResultCacheTtl(@QueryParameter String value, @QueryParameter boolean capture) {
+            String error = EnvInjectJobPropertyInfo.checkScriptResultCacheTtl(value, capture);
+            return (error == null) ? FormValidation.ok() : FormValidation.error(error);
+        }
     }
 
 }
@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.envinject;
 
 import hudson.Util;
+import org.jenkinsci.plugins.envinject.service.EnvInjectTemplate;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -12,11 +13,61 @@ public class EnvInjectJobPropertyInfo extends EnvInjectInfo {
 
     private String scriptContent;
 
-    @DataBoundConstructor
+    private boolean captureScriptEnvironment;
+
+    /**
+     * The maximum duration of the script executions in seconds (no timeout if empty)
+     */
+    private String scriptTimeout;
+
+    /**
+     * The time in minutes the results of the script content are reused for the same inputs (no cache if empty)
+     */
+    private String scriptResultCacheTtl;
+
+    /**
+     * The files the script result depends on, separated by commas or new lines
+     */
+    private String scriptCacheDependencies;
+
+    private transient EnvInjectTemplate scriptFilePathTemplate;
+
+    private transient EnvInjectTemplate scriptContentTemplate;
+
     public EnvInjectJobPropertyInfo(String propertiesFilePath, String propertiesContent, String scriptFilePath, String scriptContent) {
-        super(Util.fixEmpty(propertiesFilePath), Util.fixEmpty(propertiesContent));
+        this(propertiesFilePath, propertiesContent, scriptFilePath, scriptContent, null, false, null);
+    }
+
+    public EnvInjectJobPropertyInfo(String propertiesFilePath, String propertiesContent, String scriptFilePath, String scriptContent, String propertiesFileEncoding, boolean captureScriptEnvironment, String scriptTimeout) {
+        this(propertiesFilePath, propertiesContent, scriptFilePath, scriptContent, propertiesFileEncoding, captureScriptEnvironment, scriptTimeout, null);
+    }
+
+    public EnvInjectJobPropertyInfo(String propertiesFilePath, String propertiesContent, String scriptFilePath, String scriptContent, String propertiesFileEncoding, boolean captureScriptEnvironment, String scriptTimeout, String secretVariables) {
+        this(propertiesFilePath, propertiesContent, scriptFilePath, scriptContent, propertiesFileEncoding, captureScriptEnvironment, scriptTimeout, secretVariables, null, null);
+    }
+
+    @DataBoundConstructor
+    public EnvInjectJobPropertyInfo(String propertiesFilePath, String propertiesContent, String scriptFilePath, String scriptContent, String propertiesFileEncoding, boolean captureScriptEnvironment, String scriptTimeout, String secretVariables, String scriptResultCacheTtl, String scriptCacheDependencies) {
+        super(Util.fixEmpty(propertiesFilePath), Util.fixEmpty(propertiesContent), propertiesFileEncoding, secretVariables);
         this.scriptFilePath = Util.fixEmpty(scriptFilePath);
         this.scriptContent = Util.fixEmpty(scriptContent);
+        this.captureScriptEnvironment = captureScriptEnvironment;
+        this.scriptTimeout = Util.fixEmptyAndTrim(scriptTimeout);
+        this.scriptResultCacheTtl = Util.fixEmptyAndTrim(scriptResultCacheTtl);
+        this.scriptCacheDependencies = Util.fixEmptyAndTrim(scriptCacheDependencies);
+        compileScriptTemplates();
+    }
+
+    @Override
+    protected Object readResolve() {
+        super.readResolve();
+        compileScriptTemplates();
+        return this;
+    }
+
+    private void compileScriptTemplates() {
+        scriptFilePathTemplate = (scriptFilePath == null) ? null : EnvInjectTemplate.compile(scriptFilePath);
+        scriptContentTemplate = (scriptContent == null) ? null : EnvInjectTemplate.compile(scriptContent);
     }
 
     public String getScriptFilePath() {
@@ -26,4 +77,59 @@ public class EnvInjectJobPropertyInfo extends EnvInjectInfo {
     public String getScriptContent() {
         return scriptContent;
     }
+
+    public boolean isCaptureScriptEnvironment() {
+        return captureScriptEnvironment;
+    }
+
+    public String getScriptTimeout() {
+        return scriptTimeout;
+    }
+
+    public String getScriptResultCacheTtl() {
+        return scriptResultCacheTtl;
+    }
+
+    /**
+     * Checks the script result cache TTL, only the captured script environments are cached
+     *
+     * @param scriptResultCacheTtl     the TTL in minutes (empty if the results are not cached)
+     * @param captureScriptEnvironment true if the script environment is captured
+     * @return the error message or null if the TTL is valid
+     */
+    public static String checkScriptResultCacheTtl(String scriptResultCacheTtl, boolean captureScriptEnvironment) {
+        String ttl = Util.fixEmptyAndTrim(scriptResultCacheTtl);
+        if (ttl == null) {
+            return null;
+        }
+        try {
+            if (Long.parseLong(ttl) < 0) {
+                return "The script result cache TTL must be a positive number of minutes.";
+            }
+        } catch (NumberFormatException nfe) {
+            return "The script result cache TTL must be a number of minutes.";
+        }
+        if (!captureScriptEnvironment) {
+            return "The script results are only cached when the script environment is captured.";
+        }
+        return null;
+    }
+
+    public String getScriptCacheDependencies() {
+        return scriptCacheDependencies;
+    }
+
+    public EnvInjectTemplate getScriptFilePathTemplate() {
+        if (scriptFilePathTemplate == null && scriptFilePath != null) {
+            scriptFilePathTemplate = EnvInjectTemplate.compile(scriptFilePath);
+        }
+        return scriptFilePathTemplate;
+    }
+
+    public EnvInjectTemplate getScriptContentTemplate() {
+        if (scriptContentTemplate == null && scriptContent != null) {
+            scriptContentTemplate = EnvInjectTemplate.compile(scriptContent);
+        }
+        return scriptContentTemplate;
+    }
 }
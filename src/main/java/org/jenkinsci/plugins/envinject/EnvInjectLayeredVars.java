@@ -0,0 +1,218 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Util;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-mostly environment made of immutable layers (system, node, build, properties, script, ...).
+ * Each layer only holds the variables it adds or overrides and a lookup walks the layers from the top,
+ * so overlaying a layer costs O(changed keys) and a layer can be shared between builds.
+ * The shared layers are identified by the digest of their variables, computed once where the variables are read.
+ * The names of the variables of a Windows node are case insensitive, as EnvVars does, in all the layers above its shared layer.
+ */
+public final class EnvInjectLayeredVars extends AbstractMap<String, String> implements Serializable {
+
+    public static final EnvInjectLayeredVars EMPTY = new EnvInjectLayeredVars(null, "empty", Collections.<String, String>emptyMap(), false, false, null);
+
+    private static final ConcurrentMap<String, EnvInjectLayeredVars> SHARED_LAYERS = new ConcurrentHashMap<String, EnvInjectLayeredVars>();
+
+    private final EnvInjectLayeredVars parent;
+
+    private final String name;
+
+    private final Map<String, String> layer;
+
+    private final boolean shared;
+
+    private final boolean caseInsensitive;
+
+    private transient volatile Map<String, String> flattened;
+
+    private transient volatile String layerDigest;
+
+    private EnvInjectLayeredVars(EnvInjectLayeredVars parent, String name, Map<String, String> layer, boolean shared, boolean caseInsensitive, String layerDigest) {
+        this.parent = parent;
+        this.name = name;
+        this.layer = layer;
+        this.shared = shared;
+        this.caseInsensitive = caseInsensitive;
+        this.layerDigest = layerDigest;
+    }
+
+    /**
+     * Gets a base layer shared by all the callers giving the same name and the same variables
+     *
+     * @param name            the layer identifier (for example 'system@nodeName')
+     * @param digest          the digest of the variables (see {@link #digest(Map)}), computed once by the caller
+     * @param variables       the layer variables
+     * @param caseInsensitive true if the variable names are case insensitive (Windows nodes)
+     * @return the shared layer
+     */
+    public static EnvInjectLayeredVars shared(String name, String digest, Map<String, String> variables, boolean caseInsensitive) {
+        EnvInjectLayeredVars current = SHARED_LAYERS.get(name);
+        if (current != null && current.caseInsensitive == caseInsensitive && digest.equals(current.layerDigest)) {
+            return current;
+        }
+        Map<String, String> layer = newMap(caseInsensitive);
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                layer.put(entry.getKey(), entry.getValue());
+            }
+        }
+        EnvInjectLayeredVars newLayer = new EnvInjectLayeredVars(EMPTY, name, Collections.unmodifiableMap(layer), true, caseInsensitive, digest);
+        SHARED_LAYERS.put(name, newLayer);
+        return newLayer;
+    }
+
+    private static Map<String, String> newMap(boolean caseInsensitive) {
+        return caseInsensitive ? new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER) : new HashMap<String, String>();
+    }
+
+    /**
+     * Gets the last shared layer registered with the given name
+     *
+     * @param name the layer identifier
+     * @return the shared layer or null
+     */
+    public static EnvInjectLayeredVars getShared(String name) {
+        return SHARED_LAYERS.get(name);
+    }
+
+    /**
+     * Computes a digest of the variables, independent of the map implementation
+     *
+     * @param variables the variables
+     * @return the digest
+     */
+    public static String digest(Map<String, String> variables) {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(variables).entrySet()) {
+            content.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return Util.getDigestOf(content.toString());
+    }
+
+    /**
+     * Adds a layer on top of the current one.
+     * Only the variables whose value differs from the current view are stored.
+     *
+     * @param name      the layer name
+     * @param variables the variables to add or override
+     * @return the new view or the current one if nothing changes
+     */
+    public EnvInjectLayeredVars overlay(String name, Map<String, String> variables) {
+        if (variables == null || variables.isEmpty()) {
+            return this;
+        }
+        Map<String, String> changes = newMap(caseInsensitive);
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key != null && value != null && !value.equals(get(key))) {
+                changes.put(key, value);
+            }
+        }
+        if (changes.isEmpty()) {
+            return this;
+        }
+        return new EnvInjectLayeredVars(this, name, Collections.unmodifiableMap(changes), false, caseInsensitive, null);
+    }
+
+    /**
+     * Gets the variables added or overridden above the given ancestor view
+     *
+     * @param ancestor an ancestor view
+     * @return the merged layers above the ancestor
+     */
+    public Map<String, String> getDelta(EnvInjectLayeredVars ancestor) {
+        LinkedList<EnvInjectLayeredVars> views = new LinkedList<EnvInjectLayeredVars>();
+        for (EnvInjectLayeredVars view = this; view != null && view != ancestor; view = view.parent) {
+            views.addFirst(view);
+        }
+        Map<String, String> result = newMap(caseInsensitive);
+        for (EnvInjectLayeredVars view : views) {
+            result.putAll(view.layer);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the lowest shared layer of this view, such as the node variables
+     *
+     * @return the shared view or null if the view is not built on a shared layer
+     */
+    public EnvInjectLayeredVars getSharedBase() {
+        EnvInjectLayeredVars result = null;
+        for (EnvInjectLayeredVars view = this; view != null; view = view.parent) {
+            if (view.shared) {
+                result = view;
+            }
+        }
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EnvInjectLayeredVars getParent() {
+        return parent;
+    }
+
+    public Map<String, String> getLayer() {
+        return layer;
+    }
+
+    public boolean isCaseInsensitive() {
+        return caseInsensitive;
+    }
+
+    public String getLayerDigest() {
+        String result = layerDigest;
+        if (result == null) {
+            result = digest(layer);
+            layerDigest = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String get(Object key) {
+        for (EnvInjectLayeredVars view = this; view != null; view = view.parent) {
+            String value = view.layer.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return flatten().size();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return flatten().entrySet();
+    }
+
+    private Map<String, String> flatten() {
+        Map<String, String> result = flattened;
+        if (result == null) {
+            result = (parent == null) ? layer : Collections.unmodifiableMap(getDelta(null));
+            flattened = result;
+        }
+        return result;
+    }
+
+}
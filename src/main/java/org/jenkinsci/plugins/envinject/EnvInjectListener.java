@@ -4,17 +4,24 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.listeners.RunListener;
 import hudson.util.LogTaskListener;
-import org.jenkinsci.plugins.envinject.service.EnvInjectMasterEnvVarsSetter;
+import org.jenkinsci.plugins.envinject.service.EnvInjectBuildVarsStore;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMaskingOutputStream;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.jenkinsci.plugins.envinject.service.EnvInjectNodeEnvironmentCache;
 import org.jenkinsci.plugins.envinject.service.EnvInjectScriptExecutorService;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVariablesResolver;
 import org.jenkinsci.plugins.envinject.service.PropertiesVariablesRetriever;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,35 +42,65 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
             EnvInjectJobPropertyInfo info = envInjectJobProperty.getInfo();
             if (info != null && envInjectJobProperty.isOn()) {
 
-                Map<String, String> resultVariables = new HashMap<String, String>();
-
                 try {
 
+                    EnvInjectPhaseTimer timer = new EnvInjectPhaseTimer("Job property");
+
                     //Add system environment variables if needed
+                    //The node layer (system and node properties variables) is cached and shared between the builds of the node,
+                    //only the build specific values are overlaid
+                    EnvInjectLayeredVars systemVariables = EnvInjectLayeredVars.EMPTY;
                     if (envInjectJobProperty.isKeepSystemVariables()) {
                         //The new envMap wins
-                        //resultVariables.putAll(System.getenv());
-                        resultVariables.putAll(build.getEnvironment(new LogTaskListener(LOG, Level.ALL)));
+                        EnvInjectLayeredVars nodeVariables = EnvInjectNodeEnvironmentCache.getInstance().getBaseEnvironment(Computer.currentComputer());
+                        systemVariables = nodeVariables.overlay("build environment", getBuildEnvironment(build, nodeVariables, new LogTaskListener(LOG, Level.ALL)));
                     }
+                    timer.mark("Node variables");
 
                     //Add build variables (such as parameter variables).
+                    //The variables are resolved each other as the layers are added
+                    EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(systemVariables);
+                    EnvInjectLayeredVars variables = systemVariables;
                     if (envInjectJobProperty.isKeepBuildVariables()) {
-                        resultVariables.putAll(getAndAddBuildVariables(build));
+                        variables = variables.overlay("build", resolver.addLayer(getAndAddBuildVariables(build)));
                     }
+                    timer.mark("Build variables resolution");
 
                     //Build a properties object with all information
-                    final Map<String, String> envMap = getEnvVarsFromInfoObject(info, resultVariables, launcher, listener);
-                    resultVariables.putAll(envMap);
+                    final Map<String, String> envMap = getEnvVarsFromInfoObject(info, variables, listener);
+                    timer.mark("Properties reading and remoting");
+                    variables = variables.overlay("properties", resolver.addLayer(envMap));
+
+                    EnvInjectLogger logger = new EnvInjectLogger(listener);
+                    for (String diagnostic : resolver.getDiagnostics()) {
+                        logger.info(diagnostic);
+                    }
+                    timer.mark("Properties resolution");
 
-                    //Resolves vars each other
-                    EnvVars.resolve(resultVariables);
+                    //Mask the secret variables before the script runs
+                    EnvInjectMaskingOutputStream.addSecrets(build, info.getSecrets(variables).values());
 
-                    //Set the new computer variables
-                    Computer.currentComputer().getNode().getRootPath().act(new EnvInjectMasterEnvVarsSetter(new EnvVars(resultVariables)));
+                    //Execute script info, the variables exported by the script are already expanded
+                    variables = variables.overlay("script", executeScript(info, variables, launcher, logger));
+                    timer.mark("Script");
 
-                    //Add a display action
-                    build.addAction(new EnvInjectAction(resultVariables));
+                    //Add a display action (it also contributes the variables to the build environment)
+                    Map<String, String> secrets = info.getSecrets(variables);
+                    EnvInjectAction envInjectAction = new EnvInjectAction(build, variables, secrets.keySet());
+                    build.addAction(envInjectAction);
+                    envInjectAction.addSecrets(build, secrets, logger);
+                    timer.mark("Save");
+                    envInjectAction.addTimings(timer);
+                    EnvInjectMetrics.getInstance().recordInjection(build.getBuiltOnStr(), timer, variables.size());
 
+                    //Hide the system variables from this build only when they are not kept
+                    if (!envInjectJobProperty.isKeepSystemVariables()) {
+                        return new HiddenSystemVariablesEnvironment(getHiddenSystemVariables(variables));
+                    }
+
+                } catch (InterruptedException ie) {
+                    //The build is aborted, the script processes are already killed
+                    throw ie;
                 } catch (EnvInjectException envEx) {
                     listener.getLogger().println("SEVERE ERROR occurs: " + envEx.getMessage());
                     throw new Run.RunnerAbortedException();
@@ -77,26 +114,125 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
         };
     }
 
-    private Map<String, String> getEnvVarsFromInfoObject(final EnvInjectJobPropertyInfo info, final Map<String, String> currentEnvVars, final Launcher launcher, BuildListener listener) throws Throwable {
+    @Override
+    public void onCompleted(Run run, TaskListener listener) {
+        if (run instanceof AbstractBuild) {
+            EnvInjectMaskingOutputStream.remove((AbstractBuild) run);
+        }
+    }
+
+    @Override
+    public void onDeleted(Run run) {
+        //Unindex the injected variables while the build directory still exists
+        if (run instanceof AbstractBuild && run.getAction(EnvInjectAction.class) != null) {
+            try {
+                EnvInjectBuildVarsStore.getInstance().delete((AbstractBuild) run);
+            } catch (IOException ioe) {
+                LOG.log(Level.WARNING, String.format("Can't unindex the injected variables of the build '%s'.", run.getFullDisplayName()), ioe);
+            }
+        }
+    }
+
+    private Set<String> getHiddenSystemVariables(Map<String, String> variables) throws IOException, InterruptedException {
+        Set<String> result = new HashSet<String>();
+        Computer computer = Computer.currentComputer();
+        if (computer != null) {
+            for (String key : EnvInjectNodeEnvironmentCache.getInstance().getSystemEnvironment(computer).keySet()) {
+                if (!variables.containsKey(key)) {
+                    result.add(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Map<String, String> getEnvVarsFromInfoObject(final EnvInjectJobPropertyInfo info, final Map<String, String> currentEnvVars, BuildListener listener) throws Throwable {
 
         final Map<String, String> resultMap = new HashMap<String, String>();
 
         EnvInjectLogger logger = new EnvInjectLogger(listener);
+        FilePath rootPath = getRootPath();
+        if (rootPath != null) {
+            //Get env vars from properties
+            resultMap.putAll(rootPath.act(new PropertiesVariablesRetriever(info, currentEnvVars, logger)));
+        }
+        return resultMap;
+    }
+
+    private Map<String, String> executeScript(EnvInjectJobPropertyInfo info, Map<String, String> currentEnvVars, Launcher launcher, EnvInjectLogger logger) throws EnvInjectException, InterruptedException {
+        FilePath rootPath = getRootPath();
+        if (rootPath == null) {
+            return new HashMap<String, String>();
+        }
+        EnvInjectScriptExecutorService scriptExecutorService = new EnvInjectScriptExecutorService(info, currentEnvVars, rootPath, launcher, logger);
+        return scriptExecutorService.executeScriptFromInfoObject();
+    }
+
+    private FilePath getRootPath() {
         Computer computer = Computer.currentComputer();
         Node node = computer.getNode();
-        if (node != null) {
-            final FilePath rootPath = node.getRootPath();
-            if (rootPath != null) {
+        if (node == null) {
+            return null;
+        }
+        return node.getRootPath();
+    }
 
-                //Get env vars from properties
-                resultMap.putAll(rootPath.act(new PropertiesVariablesRetriever(info, currentEnvVars, logger)));
+    /**
+     * Gets the build specific variables AbstractBuild#getEnvironment adds to the node environment.
+     * The environments set up by the other run listeners and node properties are added by the core after this injection.
+     *
+     * @param build         the running build
+     * @param nodeVariables the cached base environment of the node
+     * @param listener      the listener of the contributors
+     * @return the resolved build environment
+     */
+    private EnvVars getBuildEnvironment(AbstractBuild<?, ?> build, Map<String, String> nodeVariables, TaskListener listener) throws IOException, InterruptedException {
+        EnvVars env = new EnvVars(nodeVariables);
+        env.putAll(build.getCharacteristicEnvVars());
 
-                //Execute script info
-                EnvInjectScriptExecutorService scriptExecutorService = new EnvInjectScriptExecutorService(info, currentEnvVars, rootPath, launcher, logger);
-                scriptExecutorService.executeScriptFromInfoObject();
+        Hudson hudson = Hudson.getInstance();
+        String rootUrl = hudson.getRootUrl();
+        if (rootUrl != null) {
+            env.put("HUDSON_URL", rootUrl);
+            env.put("JENKINS_URL", rootUrl);
+            env.put("BUILD_URL", rootUrl + build.getUrl());
+            env.put("JOB_URL", rootUrl + build.getParent().getUrl());
+        }
+        if (!env.containsKey("HUDSON_HOME")) {
+            env.put("HUDSON_HOME", hudson.getRootDir().getPath());
+        }
+        if (!env.containsKey("JENKINS_HOME")) {
+            env.put("JENKINS_HOME", hudson.getRootDir().getPath());
+        }
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Executor) {
+            env.put("EXECUTOR_NUMBER", String.valueOf(((Executor) thread).getNumber()));
+        }
+        for (EnvironmentContributor contributor : EnvironmentContributor.all()) {
+            contributor.buildEnvironmentFor(build, env, listener);
+        }
+
+        FilePath ws = build.getWorkspace();
+        if (ws != null) {
+            env.put("WORKSPACE", ws.getRemote());
+        }
+        //The servlet container may have set CLASSPATH, don't let it inherit to the child processes
+        env.put("CLASSPATH", "");
+        JDK jdk = build.getProject().getJDK();
+        if (jdk != null) {
+            Computer computer = Computer.currentComputer();
+            if (computer != null) {
+                jdk = jdk.forNode(computer.getNode(), listener);
             }
+            jdk.buildEnvVars(env);
         }
-        return resultMap;
+        build.getProject().getScm().buildEnvVars(build, env);
+
+        for (EnvironmentContributingAction action : Util.filter(build.getActions(), EnvironmentContributingAction.class)) {
+            action.buildEnvVars(build, env);
+        }
+        EnvVars.resolve(env);
+        return env;
     }
 
     private Map<String, String> getAndAddBuildVariables(AbstractBuild build) {
@@ -116,26 +252,24 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
         return result;
     }
 
-    @Override
-    public void onCompleted(final Run run, final TaskListener listener) {
+    /**
+     * Unsets the given system variables in the build scope.
+     * An empty value removes the variable from the processes launched by the build, the node environment is left untouched.
+     */
+    private static class HiddenSystemVariablesEnvironment extends Environment {
 
-        @SuppressWarnings("unchecked")
-        EnvInjectJobProperty envInjectJobProperty = (EnvInjectJobProperty) run.getParent().getProperty(EnvInjectJobProperty.class);
-        if (envInjectJobProperty != null) {
-            EnvInjectInfo info = envInjectJobProperty.getInfo();
-            if (info != null && envInjectJobProperty.isOn()) {
-                try {
-                    Computer.currentComputer().getNode().getRootPath().act(new EnvInjectMasterEnvVarsSetter(new EnvVars(System.getenv())));
-                } catch (EnvInjectException e) {
-                    run.setResult(Result.FAILURE);
-                } catch (InterruptedException e) {
-                    run.setResult(Result.FAILURE);
-                } catch (IOException e) {
-                    run.setResult(Result.FAILURE);
-                }
+        private final Set<String> hiddenVariables;
+
+        private HiddenSystemVariablesEnvironment(Set<String> hiddenVariables) {
+            this.hiddenVariables = hiddenVariables;
+        }
+
+        @Override
+        public void buildEnvVars(Map<String, String> env) {
+            for (String key : hiddenVariables) {
+                env.put(key, "");
             }
         }
     }
 
-
 }
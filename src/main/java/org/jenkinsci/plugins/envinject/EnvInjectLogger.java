@@ -5,17 +5,109 @@ import hudson.model.TaskListener;
 import java.io.Serializable;
 
 /**
+ * Writes the injection messages to the build console.
+ * The messages below the verbosity level are dropped and the long messages are truncated.
+ * <p/>
+ * When the logger is sent to a node, the messages are buffered there and written back to the console in one block
+ * by {@link #flush()}, instead of one remote call per line.
+ * <p/>
+ * The verbosity (QUIET, INFO or DEBUG) and the maximum message length are set with the system properties
+ * org.jenkinsci.plugins.envinject.EnvInjectLogger.level and org.jenkinsci.plugins.envinject.EnvInjectLogger.maxMessageLength
+ * of the master.
+ *
  * @author Gregory Boissinot
  */
 public class EnvInjectLogger implements Serializable {
 
+    public enum Level {
+        QUIET, INFO, DEBUG
+    }
+
+    private static final String PREFIX = "[EnvInject] - ";
+
+    private static final Level DEFAULT_LEVEL = getDefaultLevel();
+
+    private static final int DEFAULT_MAX_MESSAGE_LENGTH = Integer.getInteger(EnvInjectLogger.class.getName() + ".maxMessageLength", 4096);
+
     private TaskListener listener;
 
+    private final Level level;
+
+    private final int maxMessageLength;
+
+    /**
+     * The messages not yet written (on a node only)
+     */
+    private transient StringBuilder buffer;
+
     public EnvInjectLogger(TaskListener listener) {
         this.listener = listener;
+        this.level = DEFAULT_LEVEL;
+        this.maxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+    }
+
+    private static Level getDefaultLevel() {
+        String level = System.getProperty(EnvInjectLogger.class.getName() + ".level");
+        if (level != null) {
+            try {
+                return Level.valueOf(level.toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                //Keep the default level
+            }
+        }
+        return Level.INFO;
+    }
+
+    @SuppressWarnings("unused")
+    private Object readResolve() {
+        //Deserialized on a node, buffer the messages until the end of the remote call
+        buffer = new StringBuilder();
+        return this;
     }
 
     public void info(String message) {
-        listener.getLogger().println("[EnvInject] - " + message);
+        log(Level.INFO, message);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    private boolean isEnabled(Level messageLevel) {
+        return level != Level.QUIET && messageLevel.compareTo(level) <= 0;
+    }
+
+    private synchronized void log(Level messageLevel, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        String line = PREFIX + truncate(message);
+        if (buffer != null) {
+            buffer.append(line).append('\n');
+        } else {
+            listener.getLogger().println(line);
+        }
+    }
+
+    private String truncate(String message) {
+        if (message == null || maxMessageLength <= 0 || message.length() <= maxMessageLength) {
+            return message;
+        }
+        return message.substring(0, maxMessageLength) + String.format("... [%s characters truncated]", message.length() - maxMessageLength);
+    }
+
+    /**
+     * Writes the buffered messages to the console in one block
+     */
+    public synchronized void flush() {
+        if (buffer != null && buffer.length() != 0) {
+            listener.getLogger().print(buffer);
+            listener.getLogger().flush();
+            buffer.setLength(0);
+        }
     }
 }
@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Exposes the controller wide injection metrics as JSON at /envinject-metrics (administrators only).
+ * The same metrics are exposed as JMX MBeans.
+ */
+@Extension
+public class EnvInjectMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Injected Environment Variables Metrics";
+    }
+
+    public String getUrlName() {
+        return "envinject-metrics";
+    }
+
+    @SuppressWarnings("unused")
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        EnvInjectMetrics metrics = EnvInjectMetrics.getInstance();
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.write("{\"histograms\":[");
+        boolean first = true;
+        for (EnvInjectMetrics.Histogram histogram : metrics.getHistograms().values()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeName(writer, histogram.getType(), histogram.getName());
+            writer.write(",\"unit\":");
+            EnvInjectVarList.writeJsonString(writer, histogram.getUnit());
+            writer.write(",\"count\":" + histogram.getCount()
+                    + ",\"mean\":" + histogram.getMean()
+                    + ",\"max\":" + histogram.getMax()
+                    + ",\"p50\":" + histogram.getPercentile50()
+                    + ",\"p95\":" + histogram.getPercentile95()
+                    + ",\"p99\":" + histogram.getPercentile99() + "}");
+        }
+        writer.write("],\"counters\":[");
+        first = true;
+        for (EnvInjectMetrics.Counter counter : metrics.getCounters().values()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeName(writer, counter.getType(), counter.getName());
+            writer.write(",\"count\":" + counter.getCount() + "}");
+        }
+        writer.write("],\"caches\":[");
+        first = true;
+        for (Map.Entry<String, EnvInjectMetrics.CacheStatistics> entry : metrics.getCaches().entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            EnvInjectMetrics.CacheStatistics cache = entry.getValue();
+            writer.write("{\"name\":");
+            EnvInjectVarList.writeJsonString(writer, entry.getKey());
+            writer.write(",\"hits\":" + cache.getHits()
+                    + ",\"misses\":" + cache.getMisses()
+                    + ",\"hitRate\":" + cache.getHitRate() + "}");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private void writeName(PrintWriter writer, String type, String name) {
+        writer.write("{\"type\":");
+        EnvInjectVarList.writeJsonString(writer, type);
+        writer.write(",\"name\":");
+        EnvInjectVarList.writeJsonString(writer, name);
+    }
+}
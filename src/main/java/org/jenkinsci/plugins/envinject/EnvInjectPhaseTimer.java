@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins.envinject;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Times the consecutive phases of an injection step (such as the job property or the build wrapper).
+ * Each mark records the time elapsed since the previous mark.
+ */
+public class EnvInjectPhaseTimer implements Serializable {
+
+    private final String step;
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+
+    private long last;
+
+    /**
+     * @param step the injection step, null for the phases run on a node (the master timer gives them its step)
+     */
+    public EnvInjectPhaseTimer(String step) {
+        this.step = step;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase
+     *
+     * @param name the phase name
+     */
+    public void mark(String name) {
+        long now = System.nanoTime();
+        phases.add(new Phase(step, name, now - last));
+        last = now;
+    }
+
+    /**
+     * Ends a phase run on a node.
+     * The phases timed on the node are added and the remaining time is recorded as the remoting overhead.
+     *
+     * @param name         the name of the remoting overhead phase
+     * @param remotePhases the phases timed on the node
+     */
+    public void markRemote(String name, List<Phase> remotePhases) {
+        long now = System.nanoTime();
+        long remoteDuration = 0;
+        if (remotePhases != null) {
+            for (Phase phase : remotePhases) {
+                phases.add(new Phase(step, phase.getName(), phase.getDuration()));
+                remoteDuration += phase.getDuration();
+            }
+        }
+        phases.add(new Phase(step, name, Math.max(0, now - last - remoteDuration)));
+        last = now;
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class Phase implements Serializable {
+
+        private final String step;
+
+        private final String name;
+
+        private final long duration;
+
+        private Phase(String step, String name, long duration) {
+            this.step = step;
+            this.name = name;
+            this.duration = duration;
+        }
+
+        @Exported
+        public String getStep() {
+            return step;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the duration in nanoseconds
+         */
+        @Exported
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the duration in milliseconds, for the display
+         */
+        public String getDurationMillis() {
+            return String.format("%.2f", duration / 1000000.0);
+        }
+    }
+}
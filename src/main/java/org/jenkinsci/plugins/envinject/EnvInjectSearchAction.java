@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVarIndex;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.SortedSet;
+
+/**
+ * Searches the builds having injected a variable, through the index of the injected variables.
+ * For example, /envinject-search/query?name=TOOLCHAIN_VERSION&amp;value=4.2 (any value if the value is not given).
+ * Only the builds of the jobs readable by the current user are returned.
+ */
+@Extension
+public class EnvInjectSearchAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Injected Environment Variables Search";
+    }
+
+    public String getUrlName() {
+        return "envinject-search";
+    }
+
+    @SuppressWarnings("unused")
+    public void doQuery(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String name = req.getParameter("name");
+        if (name == null || name.length() == 0) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The parameter 'name' is required.");
+            return;
+        }
+        EnvInjectVarIndex index = EnvInjectVarIndex.getInstance();
+        SortedSet<String> builds = index.getBuilds(name, req.getParameter("value"));
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.write("{\"ready\":" + index.isReady() + ",\"builds\":[");
+        boolean first = true;
+        String currentJobName = null;
+        Job currentJob = null;
+        for (String build : builds) {
+            //The references are sorted by job, each job is resolved once
+            int separator = build.lastIndexOf('#');
+            String jobName = build.substring(0, separator);
+            if (!jobName.equals(currentJobName)) {
+                currentJobName = jobName;
+                currentJob = Hudson.getInstance().getItemByFullName(jobName, Job.class);
+                if (currentJob != null && !currentJob.hasPermission(Item.READ)) {
+                    currentJob = null;
+                }
+            }
+            if (currentJob == null) {
+                continue;
+            }
+            String number = build.substring(separator + 1);
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"job\":");
+            EnvInjectVarList.writeJsonString(writer, jobName);
+            writer.write(",\"number\":" + number + ",\"url\":");
+            EnvInjectVarList.writeJsonString(writer, currentJob.getUrl() + number + "/");
+            writer.write('}');
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMaskingOutputStream;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Masks the injected secret variables in the console of the builds.
+ * The injected environment variables build wrapper masks them as well, this wrapper is for the jobs without it.
+ */
+public class EnvInjectSecretsBuildWrapper extends BuildWrapper {
+
+    @DataBoundConstructor
+    public EnvInjectSecretsBuildWrapper() {
+    }
+
+    @Override
+    public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) throws IOException, InterruptedException, Run.RunnerAbortedException {
+        return EnvInjectMaskingOutputStream.decorate(build, logger);
+    }
+
+    @Override
+    public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        return new Environment() {
+            @Override
+            public void buildEnvVars(Map<String, String> env) {
+            }
+        };
+    }
+
+    @Extension
+    @SuppressWarnings("unused")
+    public static final class DescriptorImpl extends BuildWrapperDescriptor {
+
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.envinject_secrets_displayName();
+        }
+
+        @Override
+        public String getHelpFile() {
+            return "/plugin/envinject/help-secretsBuildWrapper.html";
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import org.jenkinsci.plugins.envinject.service.EnvInjectSnapshotStore;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVarIndex;
+
+import java.util.logging.Logger;
+
+/**
+ * Deletes once a day the environment snapshots not referenced by any build record anymore.
+ * The index of the injected variables knows the snapshot of each build, the cleaning waits until it is built
+ * and is skipped if a variables file couldn't be read.
+ */
+@Extension
+public class EnvInjectSnapshotCleaner extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectSnapshotCleaner.class.getName());
+
+    /**
+     * The snapshots used in the last hour are kept, their build may not be indexed yet
+     */
+    private static final long MIN_AGE = HOUR;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return DAY;
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return HOUR;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        EnvInjectVarIndex index = EnvInjectVarIndex.getInstance();
+        if (!index.isComplete()) {
+            LOGGER.info("The injected variables index isn't complete. The environment snapshots are not cleaned.");
+            return;
+        }
+        int count = EnvInjectSnapshotStore.getInstance().deleteUnreferenced(index.getReferencedSnapshots(), MIN_AGE);
+        if (count != 0) {
+            LOGGER.info(String.format("%s unreferenced environment snapshots have been deleted.", count));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.envinject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Differences between the injected variables of two builds.
+ * The sorted snapshots are merged in one pass. The variables coming from the same shared snapshot
+ * are the same string instances, so most of the values are compared by reference.
+ */
+public class EnvInjectVarDiff {
+
+    private final List<Entry> added = new ArrayList<Entry>();
+
+    private final List<Entry> removed = new ArrayList<Entry>();
+
+    private final List<Entry> changed = new ArrayList<Entry>();
+
+    /**
+     * @param from the variables of the reference build
+     * @param to   the variables of the compared build
+     */
+    public EnvInjectVarDiff(EnvInjectVarList from, EnvInjectVarList to) {
+        int i = 0;
+        int j = 0;
+        while (i < from.size() || j < to.size()) {
+            int comparison;
+            if (i == from.size()) {
+                comparison = 1;
+            } else if (j == to.size()) {
+                comparison = -1;
+            } else {
+                comparison = from.getKey(i).compareTo(to.getKey(j));
+            }
+
+            if (comparison < 0) {
+                removed.add(new Entry(from.getKey(i), from.getValue(i), null));
+                i++;
+            } else if (comparison > 0) {
+                added.add(new Entry(to.getKey(j), null, to.getValue(j)));
+                j++;
+            } else {
+                String oldValue = from.getValue(i);
+                String newValue = to.getValue(j);
+                if (oldValue != newValue && (oldValue == null || !oldValue.equals(newValue))) {
+                    changed.add(new Entry(from.getKey(i), oldValue, newValue));
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    public List<Entry> getAdded() {
+        return added;
+    }
+
+    public List<Entry> getRemoved() {
+        return removed;
+    }
+
+    public List<Entry> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    public static class Entry {
+
+        private final String name;
+
+        private final String oldValue;
+
+        private final String newValue;
+
+        private Entry(String name, String oldValue, String newValue) {
+            this.name = name;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getOldValue() {
+            return oldValue;
+        }
+
+        public String getNewValue() {
+            return newValue;
+        }
+    }
+}
@@ -1,34 +1,627 @@
 package org.jenkinsci.plugins.envinject;
 
+import hudson.model.AbstractBuild;
 import hudson.model.Api;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.Serializable;
-import java.util.Map;
-import java.util.TreeMap;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
+ * Immutable snapshot of the injected variables, kept as parallel arrays sorted by key.
+ * The keys are interned, they are mostly the same names from one build to another.
+ * A snapshot is built once per update and can be read concurrently without copy.
+ * <p/>
+ * The variables can be filtered by name prefix or regular expression and paginated,
+ * in the page (parameters prefix, regex, start and limit) and in the 'vars' JSON endpoint.
+ * They can be compared with the variables of another build (parameter with, the previous build by default)
+ * in the 'compare' page and in the 'diff' JSON endpoint.
+ * The durations of the injection phases of the build are shown in the page and in the 'timings' JSON endpoint.
+ *
  * @author Gregory Boissinot
  */
 @ExportedBean
 public class EnvInjectVarList implements Serializable {
 
-    private Map<String, String> envMap = new TreeMap<String, String>();
+    private final String[] keys;
+
+    private final String[] values;
+
+    /**
+     * Why the variables of the build can't be read (null if they are available)
+     */
+    private final String error;
+
+    private transient Map<String, String> envMap;
 
     public EnvInjectVarList(Map<String, String> envMap) {
-        this.envMap.putAll(envMap);
+        this(envMap, null);
     }
 
+    /**
+     * @param envMap the variables
+     * @param error  why the variables can't be read (null if they are available)
+     */
+    public EnvInjectVarList(Map<String, String> envMap, String error) {
+        this.error = error;
+        String[] sortedKeys = envMap.keySet().toArray(new String[envMap.size()]);
+        Arrays.sort(sortedKeys);
+        this.keys = new String[sortedKeys.length];
+        this.values = new String[sortedKeys.length];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            keys[i] = sortedKeys[i].intern();
+            values[i] = envMap.get(sortedKeys[i]);
+        }
+        this.envMap = new EnvMapView();
+    }
+
+    @SuppressWarnings("unused")
+    private Object readResolve() {
+        envMap = new EnvMapView();
+        return this;
+    }
+
+    /**
+     * @return an unmodifiable sorted view of the variables
+     */
     @Exported
     @SuppressWarnings("unused")
     public Map<String, String> getEnvMap() {
         return envMap;
     }
 
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return why the variables of the build can't be read, null if they are available
+     */
+    @Exported
+    public String getError() {
+        return error;
+    }
+
+    public String getKey(int index) {
+        return keys[index];
+    }
+
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param key the variable name
+     * @return the variable value or null
+     */
+    public String get(String key) {
+        int index = Arrays.binarySearch(keys, key);
+        return (index < 0) ? null : values[index];
+    }
+
     @SuppressWarnings("unused")
     public Api getApi() {
         return new Api(this);
     }
 
+    /**
+     * Gets the index range of the variables whose name starts with the prefix
+     *
+     * @param prefix the name prefix (all the variables if null)
+     * @return the first index (inclusive) and the last index (exclusive)
+     */
+    private int[] getRange(String prefix) {
+        if (prefix == null || prefix.length() == 0) {
+            return new int[]{0, keys.length};
+        }
+        int from = Arrays.binarySearch(keys, prefix);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        int to = from;
+        while (to < keys.length && keys[to].startsWith(prefix)) {
+            to++;
+        }
+        return new int[]{from, to};
+    }
+
+    /**
+     * Gets a page of the variables for the UI
+     *
+     * @param req the request with the optional parameters prefix, regex, start and limit
+     * @return the page of the matching variables
+     */
+    @SuppressWarnings("unused")
+    public Page getPage(StaplerRequest req) {
+        Page page = new Page(req.getParameter("prefix"), req.getParameter("regex"),
+                getIntParameter(req, "start", 0), getIntParameter(req, "limit", Page.DEFAULT_LIMIT));
+        KeyFilter filter;
+        try {
+            filter = KeyFilter.compile(page.regex);
+        } catch (PatternSyntaxException pse) {
+            page.error = "Invalid regular expression: " + pse.getDescription();
+            return page;
+        }
+        int[] range = getRange(page.prefix);
+        try {
+            for (int i = range[0]; i < range[1]; i++) {
+                if (filter.matches(keys[i])) {
+                    if (page.total >= page.start && page.total < page.start + page.limit) {
+                        page.entries.put(keys[i], values[i]);
+                    }
+                    page.total++;
+                }
+            }
+        } catch (KeyFilter.TimeoutException te) {
+            page.entries.clear();
+            page.total = 0;
+            page.error = te.getMessage();
+        }
+        return page;
+    }
+
+    /**
+     * Streams the matching variables as JSON.
+     * The parameters are prefix, regex, start, limit (all the matching variables by default)
+     * and keysOnly (the names without the values).
+     */
+    @SuppressWarnings("unused")
+    public void doVars(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        KeyFilter filter;
+        try {
+            filter = KeyFilter.compile(req.getParameter("regex"));
+        } catch (PatternSyntaxException pse) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, pse.getDescription());
+            return;
+        }
+        int start = getIntParameter(req, "start", 0);
+        int limit = getIntParameter(req, "limit", Integer.MAX_VALUE);
+        boolean keysOnly = Boolean.parseBoolean(req.getParameter("keysOnly"));
+
+        //The variables are matched before writing, a timed out match can still be reported as an error
+        int[] range = getRange(req.getParameter("prefix"));
+        int[] matches = new int[range[1] - range[0]];
+        int total = 0;
+        try {
+            for (int i = range[0]; i < range[1]; i++) {
+                if (filter.matches(keys[i])) {
+                    matches[total++] = i;
+                }
+            }
+        } catch (KeyFilter.TimeoutException te) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, te.getMessage());
+            return;
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.write("{\"variables\":[");
+        for (int m = start; m < total && m - start < limit; m++) {
+            int i = matches[m];
+            if (m != start) {
+                writer.write(',');
+            }
+            if (keysOnly) {
+                writeJsonString(writer, keys[i]);
+            } else {
+                writer.write("{\"name\":");
+                writeJsonString(writer, keys[i]);
+                writer.write(",\"value\":");
+                writeJsonString(writer, values[i]);
+                writer.write('}');
+            }
+        }
+        writer.write("],\"start\":" + start + ",\"total\":" + total + "}");
+        writer.flush();
+    }
+
+    /**
+     * Gets the build to compare with
+     *
+     * @param req the request with the optional build number parameter 'with'
+     * @return the build or null if it doesn't exist
+     */
+    public AbstractBuild<?, ?> getComparedBuild(StaplerRequest req) {
+        AbstractBuild<?, ?> build = req.findAncestorObject(AbstractBuild.class);
+        if (build == null) {
+            return null;
+        }
+        String with = req.getParameter("with");
+        if (with == null || with.length() == 0) {
+            return build.getPreviousBuild();
+        }
+        try {
+            return build.getParent().getBuildByNumber(Integer.parseInt(with));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares the variables of another build with these variables
+     *
+     * @param build the reference build
+     * @return the added, removed and changed variables since the reference build
+     */
+    public EnvInjectVarDiff getDiff(AbstractBuild<?, ?> build) {
+        EnvInjectAction action = build.getAction(EnvInjectAction.class);
+        EnvInjectVarList from = (action == null) ? new EnvInjectVarList(Collections.<String, String>emptyMap()) : action.getDisplayVarList(build);
+        return new EnvInjectVarDiff(from, this);
+    }
+
+    /**
+     * Writes the differences with another build as JSON
+     */
+    @SuppressWarnings("unused")
+    public void doDiff(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        AbstractBuild<?, ?> comparedBuild = getComparedBuild(req);
+        if (comparedBuild == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no build to compare with.");
+            return;
+        }
+        EnvInjectVarDiff diff = getDiff(comparedBuild);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.write("{\"with\":" + comparedBuild.getNumber());
+        writeDiffEntries(writer, "added", diff.getAdded());
+        writeDiffEntries(writer, "removed", diff.getRemoved());
+        writeDiffEntries(writer, "changed", diff.getChanged());
+        writer.write('}');
+        writer.flush();
+    }
+
+    /**
+     * Gets the durations of the injection phases of the build
+     *
+     * @param req the request of a build page
+     * @return the phases in the order of the injection steps
+     */
+    public List<EnvInjectPhaseTimer.Phase> getTimings(StaplerRequest req) {
+        AbstractBuild<?, ?> build = req.findAncestorObject(AbstractBuild.class);
+        EnvInjectAction action = (build == null) ? null : build.getAction(EnvInjectAction.class);
+        if (action == null) {
+            return Collections.emptyList();
+        }
+        return action.getTimings();
+    }
+
+    /**
+     * Writes the durations of the injection phases as JSON, in nanoseconds
+     */
+    @SuppressWarnings("unused")
+    public void doTimings(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        List<EnvInjectPhaseTimer.Phase> timings = getTimings(req);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.write("{\"timings\":[");
+        for (int i = 0; i < timings.size(); i++) {
+            EnvInjectPhaseTimer.Phase phase = timings.get(i);
+            if (i != 0) {
+                writer.write(',');
+            }
+            writer.write("{\"step\":");
+            writeJsonString(writer, phase.getStep());
+            writer.write(",\"name\":");
+            writeJsonString(writer, phase.getName());
+            writer.write(",\"duration\":" + phase.getDuration() + "}");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private void writeDiffEntries(PrintWriter writer, String name, List<EnvInjectVarDiff.Entry> entries) {
+        writer.write(",\"" + name + "\":[");
+        for (int i = 0; i < entries.size(); i++) {
+            EnvInjectVarDiff.Entry entry = entries.get(i);
+            if (i != 0) {
+                writer.write(',');
+            }
+            writer.write("{\"name\":");
+            writeJsonString(writer, entry.getName());
+            if (entry.getOldValue() != null) {
+                writer.write(",\"oldValue\":");
+                writeJsonString(writer, entry.getOldValue());
+            }
+            if (entry.getNewValue() != null) {
+                writer.write(",\"newValue\":");
+                writeJsonString(writer, entry.getNewValue());
+            }
+            writer.write('}');
+        }
+        writer.write(']');
+    }
+
+    private static int getIntParameter(StaplerRequest req, String name, int defaultValue) {
+        String value = req.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    static void writeJsonString(PrintWriter writer, String value) {
+        writer.write('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writer.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            writer.write(c);
+                        }
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Filter of the variable names by regular expression.
+     * The expression comes from any reader of the page, its length is limited and the matching of all the names
+     * of a request is stopped after a deadline, a catastrophic backtracking can't hold a request thread.
+     */
+    static class KeyFilter {
+
+        static final int MAX_REGEX_LENGTH = Integer.getInteger(EnvInjectVarList.class.getName() + ".maxRegexLength", 256);
+
+        static final long MATCH_TIMEOUT = Long.getLong(EnvInjectVarList.class.getName() + ".matchTimeout", 1000);
+
+        private final Pattern pattern;
+
+        private final long timeoutMillis;
+
+        private final long deadline;
+
+        private KeyFilter(Pattern pattern, long timeoutMillis) {
+            this.pattern = pattern;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        /**
+         * @param regex the regular expression (all the names match if null or empty)
+         * @return the filter, the timeout starts now
+         * @throws PatternSyntaxException if the expression is invalid or too long
+         */
+        static KeyFilter compile(String regex) {
+            return compile(regex, MATCH_TIMEOUT);
+        }
+
+        static KeyFilter compile(String regex, long timeoutMillis) {
+            if (regex == null || regex.length() == 0) {
+                return new KeyFilter(null, timeoutMillis);
+            }
+            if (regex.length() > MAX_REGEX_LENGTH) {
+                throw new PatternSyntaxException(String.format("The regular expression is limited to %d characters", MAX_REGEX_LENGTH), regex, -1);
+            }
+            return new KeyFilter(Pattern.compile(regex), timeoutMillis);
+        }
+
+        /**
+         * @throws TimeoutException if the deadline is reached
+         */
+        boolean matches(String key) {
+            return pattern == null || pattern.matcher(new DeadlineCharSequence(key, 0, key.length())).find();
+        }
+
+        static class TimeoutException extends RuntimeException {
+
+            private TimeoutException(long timeoutMillis) {
+                super(String.format("The regular expression took more than %d ms to match the variable names", timeoutMillis));
+            }
+        }
+
+        /**
+         * Checks the deadline at each character read by the matcher
+         */
+        private class DeadlineCharSequence implements CharSequence {
+
+            private final String value;
+
+            private final int start;
+
+            private final int end;
+
+            private DeadlineCharSequence(String value, int start, int end) {
+                this.value = value;
+                this.start = start;
+                this.end = end;
+            }
+
+            public int length() {
+                return end - start;
+            }
+
+            public char charAt(int index) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new TimeoutException(timeoutMillis);
+                }
+                return value.charAt(start + index);
+            }
+
+            public CharSequence subSequence(int from, int to) {
+                return new DeadlineCharSequence(value, start + from, start + to);
+            }
+
+            @Override
+            public String toString() {
+                return value.substring(start, end);
+            }
+        }
+    }
+
+    /**
+     * A page of the variables matching a filter
+     */
+    public static class Page {
+
+        private static final int DEFAULT_LIMIT = 100;
+
+        private final String prefix;
+
+        private final String regex;
+
+        private final int start;
+
+        private final int limit;
+
+        private final Map<String, String> entries = new LinkedHashMap<String, String>();
+
+        private int total;
+
+        private String error;
+
+        private Page(String prefix, String regex, int start, int limit) {
+            this.prefix = prefix;
+            this.regex = regex;
+            this.start = start;
+            this.limit = (limit == 0) ? DEFAULT_LIMIT : limit;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getRegex() {
+            return regex;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return the variables of the page, sorted by name
+         */
+        public Map<String, String> getEntries() {
+            return entries;
+        }
+
+        public String getPreviousUrl() {
+            return (start == 0) ? null : getUrl(Math.max(0, start - limit));
+        }
+
+        public String getNextUrl() {
+            return (start + limit >= total) ? null : getUrl(start + limit);
+        }
+
+        private String getUrl(int pageStart) {
+            StringBuilder result = new StringBuilder("?start=").append(pageStart).append("&limit=").append(limit);
+            if (prefix != null) {
+                result.append("&prefix=").append(encode(prefix));
+            }
+            if (regex != null) {
+                result.append("&regex=").append(encode(regex));
+            }
+            return result.toString();
+        }
+
+        private static String encode(String value) {
+            try {
+                return URLEncoder.encode(value, "UTF-8");
+            } catch (UnsupportedEncodingException uee) {
+                throw new IllegalStateException(uee);
+            }
+        }
+    }
+
+    private class EnvMapView extends AbstractMap<String, String> {
+
+        private final Set<Entry<String, String>> entrySet = new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int index;
+
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    public Entry<String, String> next() {
+                        if (index >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[index], values[index]);
+                        index++;
+                        return entry;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return entrySet;
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return keys.length == 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            return (key instanceof String) ? EnvInjectVarList.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return (key instanceof String) && Arrays.binarySearch(keys, key) >= 0;
+        }
+    }
+
 }
@@ -1,17 +1,62 @@
 package org.jenkinsci.plugins.envinject.migration;
 
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.BuildListener;
+import hudson.model.Run;
 import hudson.tasks.BuildWrapper;
 import org.jenkinsci.plugins.envinject.EnvInjectBuildWrapper;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
 /**
  * @author Gregory Boissinot
  */
 public abstract class EnvInjectMigrationBuildWrapper extends BuildWrapper {
 
+    /**
+     * The EnvInject wrapper the old wrapper runs as, while the job is not migrated yet
+     */
+    private transient EnvInjectBuildWrapper delegate;
+
     /**
      * Gets the new object with the mapped fields
      *
      * @return an EnvInjectBuildWrapper object
      */
     protected abstract EnvInjectBuildWrapper getEnvInjectBuildWrapper();
+
+    private synchronized EnvInjectBuildWrapper getDelegate() {
+        if (delegate == null) {
+            delegate = getEnvInjectBuildWrapper();
+        }
+        return delegate;
+    }
+
+    /**
+     * Runs the old wrapper as its EnvInject wrapper while the job is not migrated yet
+     */
+    @Override
+    public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        return getDelegate().setUp(build, launcher, listener);
+    }
+
+    @Override
+    public Launcher decorateLauncher(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException, Run.RunnerAbortedException {
+        return getDelegate().decorateLauncher(build, launcher, listener);
+    }
+
+    @Override
+    public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) throws IOException, InterruptedException, Run.RunnerAbortedException {
+        return getDelegate().decorateLogger(build, logger);
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject job) {
+        return getDelegate().getProjectActions(job);
+    }
 }
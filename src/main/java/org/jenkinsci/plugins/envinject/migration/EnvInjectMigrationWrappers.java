@@ -5,22 +5,29 @@ import hudson.Extension;
 import hudson.model.BuildableItemWithBuildWrappers;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
-import hudson.model.TopLevelItem;
 import hudson.model.listeners.ItemListener;
 import hudson.plugins.envfile.EnvFileBuildWrapper;
 import hudson.plugins.setenv.SetEnvBuildWrapper;
 import hudson.tasks.BuildWrapper;
 import hudson.util.DescribableList;
 import org.jenkinsci.plugins.envinject.EnvInjectBuildWrapper;
-import org.jenkinsci.plugins.envinject.EnvInjectException;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Migrates the envfile and setenv wrappers of all the jobs (folders included) to EnvInject wrappers.
+ * The jobs are migrated in background by a pool of threads, each job is saved at most once under its lock.
+ * The builds started before the migration of their job run the old wrappers as EnvInject wrappers.
+ *
  * @author Gregory Boissinot
  */
 @Extension
@@ -28,6 +35,19 @@ public class EnvInjectMigrationWrappers extends ItemListener {
 
     private static final Logger LOGGER = Logger.getLogger(EnvInjectMigrationWrappers.class.getName());
 
+    private static final int THREADS = Integer.getInteger(EnvInjectMigrationWrappers.class.getName() + ".threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicInteger total = new AtomicInteger();
+
+    private final AtomicInteger processed = new AtomicInteger();
+
+    private final AtomicInteger migrated = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private volatile boolean running;
+
     private boolean containAPluginToMigrate(Class<? extends BuildWrapper> wrapperClass) {
         return EnvFileBuildWrapper.class.isAssignableFrom(wrapperClass)
                 || SetEnvBuildWrapper.class.isAssignableFrom(wrapperClass);
@@ -35,60 +55,113 @@ public class EnvInjectMigrationWrappers extends ItemListener {
 
     @Override
     public void onLoaded() {
-        List<TopLevelItem> items = Hudson.getInstance().getItems();
-        for (TopLevelItem item : items) {
-            try {
-                if (item instanceof BuildableItemWithBuildWrappers) {
-                    BuildableItemWithBuildWrappers buildableItemWithBuildWrappers = (BuildableItemWithBuildWrappers) item;
-                    DescribableList<BuildWrapper, Descriptor<BuildWrapper>> wrappersList = buildableItemWithBuildWrappers.getBuildWrappersList();
-                    Iterator<BuildWrapper> buildWrapperIterator = wrappersList.iterator();
-                    while (buildWrapperIterator.hasNext()) {
-                        BuildWrapper buildWrapper = buildWrapperIterator.next();
-                        if (containAPluginToMigrate(buildWrapper.getClass())) {
-
-                            //Get real wrapper object
-                            EnvInjectMigrationBuildWrapper oldWrapper = (EnvInjectMigrationBuildWrapper) buildWrapper;
-
-                            //Remove old wrapper
-                            buildWrapperIterator.remove();
-
-                            //Add new wrapper
-                            addOrModifyEnvInjectBuildWrapper(buildableItemWithBuildWrappers, oldWrapper.getEnvInjectBuildWrapper());
-
-                            //Save the job with the new elements (the config.xml is overridden)
-                            buildableItemWithBuildWrappers.save();
+        final List<BuildableItemWithBuildWrappers> items = Hudson.getInstance().getAllItems(BuildableItemWithBuildWrappers.class);
+        running = true;
+        Thread thread = new Thread("EnvInject wrappers migration") {
+            @Override
+            public void run() {
+                migrate(items);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void migrate(List<BuildableItemWithBuildWrappers> items) {
+        long start = System.currentTimeMillis();
+        total.set(items.size());
+        final int progressStep = Math.max(1, items.size() / 10);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, THREADS), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EnvInject wrappers migration worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (final BuildableItemWithBuildWrappers item : items) {
+                executorService.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (migrate(item)) {
+                                migrated.incrementAndGet();
+                            }
+                        } catch (Throwable throwable) {
+                            failed.incrementAndGet();
+                            LOGGER.log(Level.SEVERE, String.format("Can't migrate old plugins to EnvInject plugin for the item %s", item.getFullName()), throwable);
+                        }
+                        int count = processed.incrementAndGet();
+                        if (count % progressStep == 0) {
+                            LOGGER.info(getProgress());
                         }
                     }
-                }
-            } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Can't migrate old plugins to EnvInject plugin for the item %s", item.getName());
-                e.printStackTrace();
-            } catch (EnvInjectException e) {
-                LOGGER.log(Level.SEVERE, "Can't migrate old plugins to EnvInject plugin for the item %s", item.getName());
-                e.printStackTrace();
+                });
             }
+            executorService.shutdown();
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            executorService.shutdownNow();
+            LOGGER.warning("The migration of old plugins to EnvInject plugin has been interrupted.");
+        } finally {
+            running = false;
         }
+        LOGGER.info(String.format("%s in %s ms.", getProgress(), System.currentTimeMillis() - start));
     }
 
-    private void addOrModifyEnvInjectBuildWrapper(BuildableItemWithBuildWrappers buildableItemWithBuildWrappers, EnvInjectBuildWrapper envInjectBuildWrapper) throws EnvInjectException {
+    /**
+     * Replaces the old wrappers of an item by an EnvInject wrapper (the last old wrapper wins)
+     *
+     * @param item the item
+     * @return true if the item has been migrated and saved
+     * @throws IOException the item can't be saved
+     */
+    private boolean migrate(BuildableItemWithBuildWrappers item) throws IOException {
+        //The configuration submission holds the job lock, a user saving the job is not overridden by the migration
+        synchronized (item.asProject()) {
+            return migrateWrappers(item);
+        }
+    }
 
-        //Iterate all wrappers and remove the envInjectWrapper if exists: only one is authorized and the new wins
-        DescribableList<BuildWrapper, Descriptor<BuildWrapper>> wrappersList = buildableItemWithBuildWrappers.getBuildWrappersList();
-        Iterator<BuildWrapper> buildWrapperIterator = wrappersList.iterator();
-        while (buildWrapperIterator.hasNext()) {
-            BuildWrapper buildWrapper = buildWrapperIterator.next();
-            if (buildWrapper.getClass().isAssignableFrom(EnvInjectBuildWrapper.class)) {
-                buildWrapperIterator.remove();
+    private boolean migrateWrappers(BuildableItemWithBuildWrappers item) throws IOException {
+        DescribableList<BuildWrapper, Descriptor<BuildWrapper>> wrappersList = item.getBuildWrappersList();
+        EnvInjectBuildWrapper envInjectBuildWrapper = null;
+        List<BuildWrapper> wrappers = new ArrayList<BuildWrapper>();
+        for (BuildWrapper buildWrapper : wrappersList) {
+            if (containAPluginToMigrate(buildWrapper.getClass())) {
+                //Get real wrapper object
+                envInjectBuildWrapper = ((EnvInjectMigrationBuildWrapper) buildWrapper).getEnvInjectBuildWrapper();
+            } else {
+                wrappers.add(buildWrapper);
             }
         }
+        if (envInjectBuildWrapper == null) {
+            return false;
+        }
 
-        //Adds the new envInjectBuildWrapper
-        try {
-            wrappersList.add(envInjectBuildWrapper);
-        } catch (IOException ioe) {
-            throw new EnvInjectException(ioe);
+        //Only one envInjectWrapper is authorized and the new wins
+        for (int i = wrappers.size() - 1; i >= 0; i--) {
+            if (wrappers.get(i) instanceof EnvInjectBuildWrapper) {
+                wrappers.remove(i);
+            }
         }
+        wrappers.add(envInjectBuildWrapper);
+
+        //Replace the wrappers, the job is saved once (the config.xml is overridden)
+        wrappersList.replaceBy(wrappers);
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
 
+    /**
+     * @return the number of processed, migrated and failed items
+     */
+    public String getProgress() {
+        return String.format("EnvInject migration: %s/%s items processed, %s migrated, %s failed",
+                processed.get(), total.get(), migrated.get(), failed.get());
     }
 
 }
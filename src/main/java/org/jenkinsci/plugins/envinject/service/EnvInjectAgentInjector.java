@@ -0,0 +1,197 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.EnvVars;
+import hudson.remoting.Callable;
+import org.jenkinsci.plugins.envinject.EnvInjectException;
+import org.jenkinsci.plugins.envinject.EnvInjectInfo;
+import org.jenkinsci.plugins.envinject.EnvInjectLayeredVars;
+import org.jenkinsci.plugins.envinject.EnvInjectLogger;
+import org.jenkinsci.plugins.envinject.EnvInjectPhaseTimer;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the node variables, parses the properties, merges and resolves them in a single remoting call.
+ * The node variables are sent back only when they differ from the ones already known by the master.
+ * The phases are timed on the node, the master deduces the remoting overhead.
+ */
+public class EnvInjectAgentInjector implements Callable<EnvInjectAgentInjector.Result, Throwable> {
+
+    /**
+     * The node variables layer, the variables of the node JVM don't change so their digest is computed once per node JVM
+     */
+    private static volatile EnvInjectLayeredVars nodeSystemVariables;
+
+    private PropertiesVariablesRetriever propertiesVariablesRetriever;
+
+    private Map<String, String> buildVariables;
+
+    private String knownSystemDigest;
+
+    private EnvInjectLogger logger;
+
+    /**
+     * @param info              the properties to inject
+     * @param buildVariables    the build variables (such as parameter variables)
+     * @param knownSystemDigest the digest of the node variables known by the master (null if unknown)
+     * @param logger            the build logger
+     */
+    public EnvInjectAgentInjector(EnvInjectInfo info, Map<String, String> buildVariables, String knownSystemDigest, EnvInjectLogger logger) throws EnvInjectException {
+        this(info, buildVariables, knownSystemDigest, null, logger);
+    }
+
+    /**
+     * @param info              the properties to inject
+     * @param buildVariables    the build variables (such as parameter variables)
+     * @param knownSystemDigest the digest of the node variables known by the master (null if unknown)
+     * @param baseDir           the directory of the relative properties file paths (such as the workspace)
+     * @param logger            the build logger
+     */
+    public EnvInjectAgentInjector(EnvInjectInfo info, Map<String, String> buildVariables, String knownSystemDigest, String baseDir, EnvInjectLogger logger) throws EnvInjectException {
+        this.propertiesVariablesRetriever = new PropertiesVariablesRetriever(info, null, baseDir, logger);
+        this.buildVariables = buildVariables;
+        this.knownSystemDigest = knownSystemDigest;
+        this.logger = logger;
+    }
+
+    public Result call() throws Throwable {
+        try {
+            return inject();
+        } finally {
+            //All the messages of the node are written back in one block
+            logger.flush();
+        }
+    }
+
+    private Result inject() throws EnvInjectException, InterruptedException {
+
+        EnvInjectPhaseTimer timer = new EnvInjectPhaseTimer(null);
+
+        //Add the current system env vars
+        EnvInjectLayeredVars systemVariables = getNodeSystemVariables();
+        timer.mark("Node variables");
+
+        //Always keep build variables (such as parameter variables).
+        //The variables are resolved each other as the layers are added
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(systemVariables);
+        EnvInjectLayeredVars variables = systemVariables.overlay("build", resolver.addLayer(buildVariables));
+        timer.mark("Build variables resolution");
+
+        //Get env vars from properties info.
+        Map<String, String> propertiesVariables = propertiesVariablesRetriever.getVariables(variables);
+        timer.mark("Properties reading");
+        variables = variables.overlay("properties", resolver.addLayer(propertiesVariables));
+
+        for (String diagnostic : resolver.getDiagnostics()) {
+            logger.info(diagnostic);
+        }
+
+        String systemDigest = systemVariables.getLayerDigest();
+        Map<String, String> changedSystemVariables = systemDigest.equals(knownSystemDigest) ? null : new HashMap<String, String>(systemVariables.getLayer());
+        Map<String, String> injectedVariables = variables.getDelta(systemVariables);
+        timer.mark("Properties resolution");
+        return new Result(systemDigest, systemVariables.isCaseInsensitive(), changedSystemVariables, injectedVariables, timer.getPhases());
+    }
+
+    private static EnvInjectLayeredVars getNodeSystemVariables() {
+        EnvInjectLayeredVars result = nodeSystemVariables;
+        if (result == null) {
+            boolean windows = (File.pathSeparatorChar == ';');
+            result = EnvInjectLayeredVars.shared("system", EnvInjectLayeredVars.digest(EnvVars.masterEnvVars), EnvVars.masterEnvVars, windows);
+            nodeSystemVariables = result;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the digest of the node variables known by the master
+     *
+     * @param nodeName the node name
+     * @return the digest or null if the node variables are unknown
+     */
+    public static String getKnownSystemDigest(String nodeName) {
+        EnvInjectLayeredVars systemVariables = EnvInjectLayeredVars.getShared(getSystemLayerName(nodeName));
+        return (systemVariables == null) ? null : systemVariables.getLayerDigest();
+    }
+
+    /**
+     * Gets the master view of an injection result.
+     * The node variables layer is shared between the builds of the node.
+     *
+     * @param nodeName the node name
+     * @param result   the injection result
+     * @return the node variables with the injected variables on top
+     */
+    public static EnvInjectLayeredVars getVariables(String nodeName, Result result) {
+        String layerName = getSystemLayerName(nodeName);
+        EnvInjectLayeredVars systemVariables = EnvInjectLayeredVars.getShared(layerName);
+        if (result.getSystemVariables() != null || systemVariables == null) {
+            systemVariables = EnvInjectLayeredVars.shared(layerName, result.getSystemDigest(), result.getSystemVariables(), result.isCaseInsensitive());
+        }
+        return systemVariables.overlay("injected", result.getInjectedVariables());
+    }
+
+    private static String getSystemLayerName(String nodeName) {
+        return "system@" + nodeName;
+    }
+
+    public static class Result implements Serializable {
+
+        private final String systemDigest;
+
+        private final boolean caseInsensitive;
+
+        private final Map<String, String> systemVariables;
+
+        private final Map<String, String> injectedVariables;
+
+        private final List<EnvInjectPhaseTimer.Phase> timings;
+
+        private Result(String systemDigest, boolean caseInsensitive, Map<String, String> systemVariables, Map<String, String> injectedVariables, List<EnvInjectPhaseTimer.Phase> timings) {
+            this.systemDigest = systemDigest;
+            this.caseInsensitive = caseInsensitive;
+            this.systemVariables = systemVariables;
+            this.injectedVariables = injectedVariables;
+            this.timings = timings;
+        }
+
+        /**
+         * @return the digest of the node variables
+         */
+        public String getSystemDigest() {
+            return systemDigest;
+        }
+
+        /**
+         * @return true if the variable names of the node are case insensitive (Windows nodes)
+         */
+        public boolean isCaseInsensitive() {
+            return caseInsensitive;
+        }
+
+        /**
+         * @return the node variables or null if they are the ones already known by the master
+         */
+        public Map<String, String> getSystemVariables() {
+            return systemVariables;
+        }
+
+        /**
+         * @return the resolved build and properties variables
+         */
+        public Map<String, String> getInjectedVariables() {
+            return injectedVariables;
+        }
+
+        /**
+         * @return the phases timed on the node
+         */
+        public List<EnvInjectPhaseTimer.Phase> getTimings() {
+            return timings;
+        }
+    }
+}
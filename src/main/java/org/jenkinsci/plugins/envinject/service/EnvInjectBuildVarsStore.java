@@ -0,0 +1,245 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Hudson;
+import org.jenkinsci.plugins.envinject.EnvInjectVarList;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * Stores the injected variables of each build in its own file (injectedEnvVars.xml in the build directory),
+ * as a reference to a shared snapshot and the differences of the build.
+ * The build records don't hold the variables anymore, they are read on demand
+ * and the last read snapshots are kept in a bounded cache of soft references.
+ */
+public class EnvInjectBuildVarsStore {
+
+    public static final String FILE_NAME = "injectedEnvVars.xml";
+
+    private static final String CACHE_NAME = "buildVariables";
+
+    private static final int MAX_ENTRIES = Integer.getInteger(EnvInjectBuildVarsStore.class.getName() + ".maxEntries", 64);
+
+    private static final EnvInjectBuildVarsStore INSTANCE = new EnvInjectBuildVarsStore(MAX_ENTRIES);
+
+    private final Map<File, SoftReference<EnvInjectVarList>> cache;
+
+    static {
+        //The file format doesn't depend on the class names
+        Hudson.XSTREAM.alias("envInjectBuildVars", Record.class);
+    }
+
+    EnvInjectBuildVarsStore(final int maxEntries) {
+        this.cache = new LinkedHashMap<File, SoftReference<EnvInjectVarList>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, SoftReference<EnvInjectVarList>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static EnvInjectBuildVarsStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Writes the injected variables of a build and indexes them
+     *
+     * @param build       the build
+     * @param variables   the injected variables
+     * @param secretNames the names of the secret variables (their values are not searchable)
+     * @return the immutable snapshot of the variables
+     * @throws IOException the file can't be written
+     */
+    public EnvInjectVarList save(AbstractBuild<?, ?> build, Map<String, String> variables, Set<String> secretNames) throws IOException {
+        EnvInjectSnapshotStore snapshotStore = EnvInjectSnapshotStore.getInstance();
+        String digest = snapshotStore.getBase(variables);
+        Map<String, String> base = (digest == null) ? Collections.<String, String>emptyMap() : snapshotStore.get(digest);
+
+        Record record = diff(build.getNumber(), digest, base, variables, secretNames);
+
+        File buildDir = build.getRootDir();
+        Record oldRecord = null;
+        try {
+            oldRecord = readRecord(buildDir);
+        } catch (IOException ioe) {
+            //The previous file is unreadable, it is overridden
+        }
+        File file = new File(buildDir, FILE_NAME);
+        new XmlFile(Hudson.XSTREAM, file).write(record);
+        EnvInjectVarIndex.getInstance().update(getBuildReference(build), oldRecord, record);
+
+        EnvInjectVarList result = new EnvInjectVarList(variables);
+        put(file, result);
+        return result;
+    }
+
+    /**
+     * Reads the injected variables of a build
+     *
+     * @param build the build
+     * @return the immutable snapshot of the variables or null if the build has no variables file
+     * @throws IOException the file or its base snapshot can't be read (the record is corrupt)
+     */
+    public EnvInjectVarList load(AbstractBuild<?, ?> build) throws IOException {
+        File buildDir = build.getRootDir();
+        File file = new File(buildDir, FILE_NAME);
+        synchronized (cache) {
+            SoftReference<EnvInjectVarList> reference = cache.get(file);
+            EnvInjectVarList variables = (reference == null) ? null : reference.get();
+            if (variables != null) {
+                EnvInjectMetrics.getInstance().getCache(CACHE_NAME).hit();
+                return variables;
+            }
+        }
+        EnvInjectMetrics.getInstance().getCache(CACHE_NAME).miss();
+
+        Record record = readRecord(buildDir);
+        if (record == null) {
+            return null;
+        }
+        Map<String, String> base = Collections.emptyMap();
+        if (record.baseSnapshot != null) {
+            base = EnvInjectSnapshotStore.getInstance().get(record.baseSnapshot);
+        }
+
+        EnvInjectVarList result = new EnvInjectVarList(apply(record, base));
+        put(file, result);
+        return result;
+    }
+
+    /**
+     * Removes the variables of a build being deleted from the index and from the cache
+     *
+     * @param build the build
+     */
+    public void delete(AbstractBuild<?, ?> build) throws IOException {
+        File buildDir = build.getRootDir();
+        Record record = readRecord(buildDir);
+        if (record != null) {
+            EnvInjectVarIndex.getInstance().update(getBuildReference(build), record, null);
+        }
+        synchronized (cache) {
+            cache.remove(new File(buildDir, FILE_NAME));
+        }
+    }
+
+    /**
+     * Computes the record of the variables of a build
+     *
+     * @param buildNumber the build number
+     * @param digest      the digest of the base snapshot (null if the variables are kept inline)
+     * @param base        the variables of the base snapshot (empty if none)
+     * @param variables   the variables of the build
+     * @param secretNames the names of the secret variables (null if none)
+     * @return the record of the variables added, changed and removed from the base
+     */
+    static Record diff(int buildNumber, String digest, Map<String, String> base, Map<String, String> variables, Set<String> secretNames) {
+        Record record = new Record(buildNumber, digest);
+        if (secretNames != null) {
+            record.secretNames.addAll(secretNames);
+        }
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            if (!entry.getValue().equals(base.get(entry.getKey()))) {
+                record.envDelta.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : base.keySet()) {
+            if (!variables.containsKey(key)) {
+                record.removedKeys.add(key);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Rebuilds the variables of a build from its record
+     *
+     * @param record the record of the build
+     * @param base   the variables of its base snapshot (empty if none)
+     * @return the variables of the build
+     */
+    static Map<String, String> apply(Record record, Map<String, String> base) {
+        Map<String, String> variables = new HashMap<String, String>(base);
+        variables.keySet().removeAll(record.removedKeys);
+        variables.putAll(record.envDelta);
+        return variables;
+    }
+
+    Record readRecord(File buildDir) throws IOException {
+        XmlFile xmlFile = new XmlFile(Hudson.XSTREAM, new File(buildDir, FILE_NAME));
+        if (!xmlFile.exists()) {
+            return null;
+        }
+        return (Record) xmlFile.read();
+    }
+
+    private String getBuildReference(AbstractBuild<?, ?> build) {
+        return EnvInjectVarIndex.getBuildReference(build.getParent().getFullName(), build.getNumber());
+    }
+
+    private void put(File file, EnvInjectVarList variables) {
+        synchronized (cache) {
+            cache.put(file, new SoftReference<EnvInjectVarList>(variables));
+        }
+    }
+
+    /**
+     * The content of a build variables file
+     */
+    static class Record {
+
+        private int buildNumber;
+
+        private String baseSnapshot;
+
+        private Map<String, String> envDelta = new TreeMap<String, String>();
+
+        private Set<String> removedKeys = new TreeSet<String>();
+
+        private Set<String> secretNames = new TreeSet<String>();
+
+        Record(int buildNumber, String baseSnapshot) {
+            this.buildNumber = buildNumber;
+            this.baseSnapshot = baseSnapshot;
+        }
+
+        @SuppressWarnings("unused")
+        private Object readResolve() {
+            if (envDelta == null) {
+                envDelta = new TreeMap<String, String>();
+            }
+            if (removedKeys == null) {
+                removedKeys = new TreeSet<String>();
+            }
+            if (secretNames == null) {
+                secretNames = new TreeSet<String>();
+            }
+            return this;
+        }
+
+        int getBuildNumber() {
+            return buildNumber;
+        }
+
+        String getBaseSnapshot() {
+            return baseSnapshot;
+        }
+
+        Map<String, String> getEnvDelta() {
+            return envDelta;
+        }
+
+        Set<String> getRemovedKeys() {
+            return removedKeys;
+        }
+
+        Set<String> getSecretNames() {
+            return secretNames;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Script output stream forwarding the output to the build log, except the blocks enclosed by marker lines.
+ * The blocks are kept in memory up to a maximum size, the next bytes are dropped.
+ */
+public class EnvInjectCaptureOutputStream extends OutputStream {
+
+    private final OutputStream out;
+
+    private final byte[] marker;
+
+    private final int maxCapturedBytes;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    private final List<ByteArrayOutputStream> blocks = new ArrayList<ByteArrayOutputStream>();
+
+    private int capturedBytes;
+
+    private boolean capturing;
+
+    private boolean passThrough;
+
+    private boolean overflow;
+
+    /**
+     * @param out              the build log
+     * @param marker           the line enclosing the blocks to capture
+     * @param maxCapturedBytes the maximum size of all the captured blocks
+     */
+    public EnvInjectCaptureOutputStream(OutputStream out, String marker, int maxCapturedBytes) {
+        this.out = out;
+        this.marker = marker.getBytes();
+        this.maxCapturedBytes = maxCapturedBytes;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        writeByte(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            writeByte(b[i]);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (b == '\n') {
+            endLine();
+            return;
+        }
+        if (passThrough) {
+            //The current line is too long to be a marker, it is forwarded (or dropped if captured)
+            if (!capturing) {
+                out.write(b);
+            }
+            return;
+        }
+        line.write(b);
+        if (line.size() <= marker.length + 1) {
+            //The line may still be a marker, the closing marker of a full block is recognized
+            return;
+        }
+        if (!capturing) {
+            line.writeTo(out);
+            line.reset();
+            passThrough = true;
+        } else if (capturedBytes + line.size() > maxCapturedBytes) {
+            overflow = true;
+            line.reset();
+            passThrough = true;
+        }
+    }
+
+    private void endLine() throws IOException {
+        if (passThrough) {
+            if (!capturing) {
+                out.write('\n');
+            }
+            passThrough = false;
+            return;
+        }
+        if (isMarker()) {
+            capturing = !capturing;
+            if (capturing) {
+                blocks.add(new ByteArrayOutputStream());
+            }
+        } else if (capturing) {
+            capturedBytes += line.size() + 1;
+            if (capturedBytes > maxCapturedBytes) {
+                overflow = true;
+            } else {
+                ByteArrayOutputStream block = blocks.get(blocks.size() - 1);
+                line.writeTo(block);
+                block.write('\n');
+            }
+        } else {
+            line.writeTo(out);
+            out.write('\n');
+        }
+        line.reset();
+    }
+
+    private boolean isMarker() {
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        if (length != marker.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (line.size() != 0 && !capturing) {
+            line.writeTo(out);
+            line.reset();
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the captured blocks (complete or not)
+     */
+    public synchronized List<String> getBlocks() {
+        List<String> result = new ArrayList<String>(blocks.size());
+        for (ByteArrayOutputStream block : blocks) {
+            result.add(block.toString());
+        }
+        return result;
+    }
+
+    /**
+     * @return true if some captured bytes have been dropped
+     */
+    public synchronized boolean isOverflow() {
+        return overflow;
+    }
+}
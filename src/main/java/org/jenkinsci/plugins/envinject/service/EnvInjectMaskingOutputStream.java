@@ -0,0 +1,256 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.model.AbstractBuild;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Build console stream replacing the values of the secret variables with asterisks.
+ * The stream is installed when the build starts and the secrets are added as they are injected.
+ * <p/>
+ * The bytes go through the secret automaton as they are written. Only the last bytes that may still be
+ * the beginning of a secret are held back (never more than the longest secret), the others are written at once.
+ * The automaton is never reset on a match: the bytes of every matched secret are marked, so when a secret
+ * starts with or contains another secret, the longer one is masked as a whole.
+ * The consecutive masked bytes are written as a single mask.
+ */
+public class EnvInjectMaskingOutputStream extends OutputStream {
+
+    public static final String MASK = "********";
+
+    /**
+     * The shorter values are not masked, they would mask most of the output
+     */
+    public static final int MIN_SECRET_LENGTH = 3;
+
+    private static final Map<AbstractBuild<?, ?>, EnvInjectMaskingOutputStream> STREAMS = new WeakHashMap<AbstractBuild<?, ?>, EnvInjectMaskingOutputStream>();
+
+    private final OutputStream out;
+
+    private final Charset charset;
+
+    private final byte[] mask;
+
+    private final Set<String> secrets = new HashSet<String>();
+
+    private EnvInjectSecretMatcher matcher;
+
+    private int state;
+
+    /**
+     * The bytes held back, from pendingStart to pendingEnd
+     */
+    private byte[] pending = new byte[0];
+
+    /**
+     * The held bytes belonging to a matched secret
+     */
+    private boolean[] masked = new boolean[0];
+
+    /**
+     * True if the last written byte was masked (the next masked bytes continue the same mask)
+     */
+    private boolean inMask;
+
+    private int pendingStart;
+
+    private int pendingEnd;
+
+    private byte[] output = new byte[8192];
+
+    private int outputLength;
+
+    EnvInjectMaskingOutputStream(OutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+        this.mask = MASK.getBytes(charset);
+    }
+
+    /**
+     * Installs the masking stream of a build (once per build)
+     *
+     * @param build  the starting build
+     * @param logger the console stream of the build
+     * @return the masking stream
+     */
+    public static OutputStream decorate(AbstractBuild<?, ?> build, OutputStream logger) {
+        synchronized (STREAMS) {
+            if (STREAMS.containsKey(build)) {
+                return logger;
+            }
+            Charset charset = build.getCharset();
+            EnvInjectMaskingOutputStream stream = new EnvInjectMaskingOutputStream(logger, (charset == null) ? Charset.defaultCharset() : charset);
+            STREAMS.put(build, stream);
+            return stream;
+        }
+    }
+
+    /**
+     * Masks the given values in the console of a build from now on
+     *
+     * @param build   the build
+     * @param secrets the secret values
+     * @return false if the console of the build isn't masked
+     */
+    public static boolean addSecrets(AbstractBuild<?, ?> build, Collection<String> secrets) throws IOException {
+        EnvInjectMaskingOutputStream stream;
+        synchronized (STREAMS) {
+            stream = STREAMS.get(build);
+        }
+        if (stream == null) {
+            return false;
+        }
+        stream.addSecrets(secrets);
+        return true;
+    }
+
+    /**
+     * @param build the completed build
+     */
+    public static void remove(AbstractBuild<?, ?> build) {
+        synchronized (STREAMS) {
+            STREAMS.remove(build);
+        }
+    }
+
+    synchronized void addSecrets(Collection<String> values) throws IOException {
+        boolean changed = false;
+        for (String value : values) {
+            if (value != null && value.length() >= MIN_SECRET_LENGTH) {
+                changed |= secrets.add(value);
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        //The held bytes don't start any secret of the previous automaton if the state is reset, write them
+        emit(pendingEnd - pendingStart);
+        writeOutput();
+        matcher = new EnvInjectSecretMatcher(secrets, charset);
+        state = matcher.getRoot();
+        pending = new byte[2 * (matcher.getMaxLength() + 1)];
+        masked = new boolean[pending.length];
+        pendingStart = 0;
+        pendingEnd = 0;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (matcher == null) {
+            out.write(b);
+            return;
+        }
+        process((byte) b);
+        writeOutput();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (matcher == null) {
+            out.write(b, off, len);
+            return;
+        }
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (state == matcher.getRoot()) {
+                //Fast path: the bytes not starting any secret are copied as a block
+                int start = i;
+                while (i < end && !matcher.isStart(b[i])) {
+                    i++;
+                }
+                if (i > start) {
+                    append(b, start, i - start);
+                    inMask = false;
+                    continue;
+                }
+            }
+            process(b[i++]);
+        }
+        writeOutput();
+    }
+
+    private void process(byte b) {
+        state = matcher.next(state, b);
+        if (pendingEnd == pending.length) {
+            System.arraycopy(pending, pendingStart, pending, 0, pendingEnd - pendingStart);
+            System.arraycopy(masked, pendingStart, masked, 0, pendingEnd - pendingStart);
+            pendingEnd -= pendingStart;
+            pendingStart = 0;
+        }
+        pending[pendingEnd] = b;
+        masked[pendingEnd] = false;
+        pendingEnd++;
+
+        //The matched secret is a suffix of the held bytes (its length never exceeds the depth of the state)
+        int matchLength = matcher.getMatchLength(state);
+        for (int i = pendingEnd - matchLength; i < pendingEnd; i++) {
+            masked[i] = true;
+        }
+
+        //The bytes before the current prefix can't be part of a later secret
+        emit(pendingEnd - pendingStart - matcher.getDepth(state));
+    }
+
+    /**
+     * Moves the first held bytes to the output, a run of masked bytes is replaced by the mask
+     */
+    private void emit(int count) {
+        int end = pendingStart + count;
+        while (pendingStart < end) {
+            int start = pendingStart;
+            if (masked[start]) {
+                while (pendingStart < end && masked[pendingStart]) {
+                    pendingStart++;
+                }
+                if (!inMask) {
+                    append(mask, 0, mask.length);
+                    inMask = true;
+                }
+            } else {
+                while (pendingStart < end && !masked[pendingStart]) {
+                    pendingStart++;
+                }
+                append(pending, start, pendingStart - start);
+                inMask = false;
+            }
+        }
+        if (pendingStart == pendingEnd) {
+            pendingStart = 0;
+            pendingEnd = 0;
+        }
+    }
+
+    private void append(byte[] bytes, int off, int len) {
+        if (outputLength + len > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + len));
+        }
+        System.arraycopy(bytes, off, output, outputLength, len);
+        outputLength += len;
+    }
+
+    private void writeOutput() throws IOException {
+        if (outputLength != 0) {
+            out.write(output, 0, outputLength);
+            outputLength = 0;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        //The held bytes may be the beginning of a secret, they wait for the next bytes
+        writeOutput();
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        //An incomplete secret is not a secret
+        emit(pendingEnd - pendingStart);
+        writeOutput();
+        out.close();
+    }
+}
@@ -0,0 +1,399 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.EnvInjectPhaseTimer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller wide metrics of the injections, fed by the injection steps and the script executions.
+ * The histograms and counters are atomic (no lock on the build start path), a metric is only registered on first use.
+ * The latency histograms of the deleted nodes are removed when the node list changes.
+ * Each metric is exposed as a JMX MBean (domain org.jenkinsci.plugins.envinject) and in the JSON endpoint /envinject-metrics.
+ */
+public class EnvInjectMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectMetrics.class.getName());
+
+    private static final String JMX_DOMAIN = "org.jenkinsci.plugins.envinject";
+
+    public static final String PHASE_LATENCY = "PhaseLatency";
+
+    public static final String NODE_LATENCY = "NodeLatency";
+
+    public static final String ENVIRONMENT_SIZE = "EnvironmentSize";
+
+    public static final String SCRIPT_DURATION = "ScriptDuration";
+
+    public static final String SCRIPT_EXIT_CODE = "ScriptExitCode";
+
+    public static final String SCRIPT_TIMEOUT = "ScriptTimeout";
+
+    private static final EnvInjectMetrics INSTANCE = new EnvInjectMetrics();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    private final ConcurrentMap<String, CacheStatistics> caches = new ConcurrentHashMap<String, CacheStatistics>();
+
+    public static EnvInjectMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records an injection step
+     *
+     * @param nodeName      the node of the build (empty for the master)
+     * @param timer         the phases of the step
+     * @param variableCount the number of variables of the build environment
+     */
+    public void recordInjection(String nodeName, EnvInjectPhaseTimer timer, int variableCount) {
+        long total = 0;
+        for (EnvInjectPhaseTimer.Phase phase : timer.getPhases()) {
+            getHistogram(PHASE_LATENCY, phase.getStep() + "/" + phase.getName(), "microseconds").record(phase.getDuration() / 1000);
+            total += phase.getDuration();
+        }
+        getHistogram(NODE_LATENCY, getNodeMetricName(nodeName), "microseconds").record(total / 1000);
+        getHistogram(ENVIRONMENT_SIZE, "variables", "variables").record(variableCount);
+    }
+
+    /**
+     * Removes the latency histograms of the nodes that no longer exist and unregisters their MBeans
+     *
+     * @param nodeNames the names of the existing nodes (empty for the master)
+     */
+    public void retainNodes(Collection<String> nodeNames) {
+        Set<String> retainedNames = new HashSet<String>();
+        for (String nodeName : nodeNames) {
+            retainedNames.add(getNodeMetricName(nodeName));
+        }
+        for (Histogram histogram : histograms.values()) {
+            if (NODE_LATENCY.equals(histogram.getType()) && !retainedNames.contains(histogram.getName())) {
+                histograms.remove(NODE_LATENCY + ":" + histogram.getName(), histogram);
+                unregister(NODE_LATENCY, histogram.getName());
+            }
+        }
+    }
+
+    private String getNodeMetricName(String nodeName) {
+        return (nodeName == null || nodeName.length() == 0) ? "master" : nodeName;
+    }
+
+    /**
+     * Records a script execution
+     *
+     * @param exitCode the exit code of the script
+     * @param duration the duration in nanoseconds
+     */
+    public void recordScript(int exitCode, long duration) {
+        getHistogram(SCRIPT_DURATION, "script", "microseconds").record(duration / 1000);
+        getCounter(SCRIPT_EXIT_CODE, String.valueOf(exitCode)).increment();
+    }
+
+    /**
+     * Records a script killed after its timeout
+     */
+    public void recordScriptTimeout() {
+        getCounter(SCRIPT_TIMEOUT, "script").increment();
+    }
+
+    /**
+     * @param name the cache name
+     * @return the hit and miss counters of the cache
+     */
+    public CacheStatistics getCache(String name) {
+        CacheStatistics cache = caches.get(name);
+        if (cache == null) {
+            CacheStatistics newCache = new CacheStatistics();
+            cache = caches.putIfAbsent(name, newCache);
+            if (cache == null) {
+                cache = newCache;
+                register("Cache", name, newCache, CacheStatisticsMBean.class);
+            }
+        }
+        return cache;
+    }
+
+    public Histogram getHistogram(String type, String name, String unit) {
+        String key = type + ":" + name;
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram(type, name, unit);
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+                register(type, name, newHistogram, HistogramMBean.class);
+            }
+        }
+        return histogram;
+    }
+
+    public Counter getCounter(String type, String name) {
+        String key = type + ":" + name;
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter newCounter = new Counter(type, name);
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+                register(type, name, newCounter, CounterMBean.class);
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histograms sorted by type and name
+     */
+    public SortedMap<String, Histogram> getHistograms() {
+        return new TreeMap<String, Histogram>(histograms);
+    }
+
+    /**
+     * @return the counters sorted by type and name
+     */
+    public SortedMap<String, Counter> getCounters() {
+        return new TreeMap<String, Counter>(counters);
+    }
+
+    /**
+     * @return the caches sorted by name
+     */
+    public SortedMap<String, CacheStatistics> getCaches() {
+        return new TreeMap<String, CacheStatistics>(caches);
+    }
+
+    private <T> void register(String type, String name, T metric, Class<T> mbeanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(type, name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(metric, mbeanInterface), objectName);
+            }
+        } catch (JMException jme) {
+            LOGGER.log(Level.FINE, String.format("Can't register the MBean of the metric '%s:%s'.", type, name), jme);
+        }
+    }
+
+    private void unregister(String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException jme) {
+            LOGGER.log(Level.FINE, String.format("Can't unregister the MBean of the metric '%s:%s'.", type, name), jme);
+        }
+    }
+
+    private ObjectName getObjectName(String type, String name) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    public interface HistogramMBean {
+
+        String getUnit();
+
+        long getCount();
+
+        double getMean();
+
+        long getMax();
+
+        long getPercentile50();
+
+        long getPercentile95();
+
+        long getPercentile99();
+    }
+
+    /**
+     * Histogram with exponential buckets (powers of 2), the percentiles are the upper bounds of their buckets
+     */
+    public static class Histogram implements HistogramMBean {
+
+        private static final int BUCKET_COUNT = 64;
+
+        private final String type;
+
+        private final String name;
+
+        private final String unit;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String type, String name, String unit) {
+            this.type = type;
+            this.name = name;
+            this.unit = unit;
+        }
+
+        public void record(long value) {
+            long positiveValue = Math.max(0, value);
+            //Bucket i holds the values from 2^(i-1) to 2^i - 1 (bucket 0 holds 0)
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(positiveValue));
+            count.incrementAndGet();
+            sum.addAndGet(positiveValue);
+            long currentMax = max.get();
+            while (positiveValue > currentMax && !max.compareAndSet(currentMax, positiveValue)) {
+                currentMax = max.get();
+            }
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMean() {
+            long currentCount = count.get();
+            return (currentCount == 0) ? 0 : (double) sum.get() / currentCount;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getPercentile50() {
+            return getPercentile(0.50);
+        }
+
+        public long getPercentile95() {
+            return getPercentile(0.95);
+        }
+
+        public long getPercentile99() {
+            return getPercentile(0.99);
+        }
+
+        private long getPercentile(double quantile) {
+            long[] snapshot = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    //The upper bound of the bucket, never more than the recorded max
+                    long upperBound = (i == BUCKET_COUNT - 1) ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upperBound, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+
+    public interface CounterMBean {
+
+        long getCount();
+    }
+
+    public static class Counter implements CounterMBean {
+
+        private final String type;
+
+        private final String name;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private Counter(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    public interface CacheStatisticsMBean {
+
+        long getHits();
+
+        long getMisses();
+
+        double getHitRate();
+    }
+
+    public static class CacheStatistics implements CacheStatisticsMBean {
+
+        private final AtomicLong hits = new AtomicLong();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        public void hit() {
+            hits.incrementAndGet();
+        }
+
+        public void miss() {
+            misses.incrementAndGet();
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public double getHitRate() {
+            long currentHits = hits.get();
+            long total = currentHits + misses.get();
+            return (total == 0) ? 0 : (double) currentHits / total;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.EnvVars;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.DescribableList;
+import org.jenkinsci.plugins.envinject.EnvInjectLayeredVars;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per node cache of the base environment of the builds.
+ * The base environment is the system environment of the node JVM, retrieved through the node channel,
+ * with the variables of the global and of the node EnvironmentVariablesNodeProperty on top.
+ * It is computed once when the node connects instead of once per build, each build only overlays its own variables.
+ * An entry is only valid for the channel it has been retrieved from, so a reconnected node retrieves its environment again
+ * even if the offline event is missed. The entries are invalidated when a node or the global configuration is saved.
+ */
+public class EnvInjectNodeEnvironmentCache {
+
+    /**
+     * Computes the environment at each call
+     */
+    private static final boolean DISABLED = Boolean.getBoolean(EnvInjectNodeEnvironmentCache.class.getName() + ".disabled");
+
+    private static final String CACHE_NAME = "nodeEnvironments";
+
+    private static final EnvInjectNodeEnvironmentCache INSTANCE = new EnvInjectNodeEnvironmentCache();
+
+    private final Map<Computer, CachedEnvironment> environments = new WeakHashMap<Computer, CachedEnvironment>();
+
+    public static EnvInjectNodeEnvironmentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the system environment variables of a node
+     *
+     * @param computer the node computer
+     * @return the read-only system environment variables
+     */
+    public Map<String, String> getSystemEnvironment(Computer computer) throws IOException, InterruptedException {
+        return get(computer).systemVariables;
+    }
+
+    /**
+     * Gets the base environment of the builds of a node
+     *
+     * @param computer the node computer
+     * @return the shared layer of the resolved system and node properties variables
+     */
+    public EnvInjectLayeredVars getBaseEnvironment(Computer computer) throws IOException, InterruptedException {
+        return get(computer).baseVariables;
+    }
+
+    private CachedEnvironment get(Computer computer) throws IOException, InterruptedException {
+        if (DISABLED) {
+            return compute(computer);
+        }
+        VirtualChannel channel = computer.getChannel();
+        synchronized (this) {
+            CachedEnvironment cachedEnvironment = environments.get(computer);
+            if (cachedEnvironment != null && cachedEnvironment.channel == channel) {
+                EnvInjectMetrics.getInstance().getCache(CACHE_NAME).hit();
+                return cachedEnvironment;
+            }
+        }
+        EnvInjectMetrics.getInstance().getCache(CACHE_NAME).miss();
+        return fill(computer);
+    }
+
+    /**
+     * Retrieves and caches the environment of a node
+     *
+     * @param computer the node computer
+     * @return the cached environment
+     */
+    private CachedEnvironment fill(Computer computer) throws IOException, InterruptedException {
+        //The remote call is made outside the lock, concurrent misses may both retrieve the environment
+        CachedEnvironment cachedEnvironment = compute(computer);
+        synchronized (this) {
+            environments.put(computer, cachedEnvironment);
+        }
+        return cachedEnvironment;
+    }
+
+    /**
+     * Retrieves and caches the environment of a connected node
+     *
+     * @param computer the node computer
+     */
+    public void refresh(Computer computer) throws IOException, InterruptedException {
+        fill(computer);
+    }
+
+    public synchronized void invalidate(Computer computer) {
+        environments.remove(computer);
+    }
+
+    public synchronized void invalidateAll() {
+        environments.clear();
+    }
+
+    private CachedEnvironment compute(Computer computer) throws IOException, InterruptedException {
+        VirtualChannel channel = computer.getChannel();
+        if (channel == null) {
+            throw new IOException(String.format("The node '%s' is offline.", computer.getName()));
+        }
+        SystemEnvironment systemEnvironment = channel.call(new GetSystemEnvironment());
+        EnvVars systemVariables = systemEnvironment.variables;
+
+        //The node properties variables (the global ones, then the ones of the node), as their Environment adds them
+        EnvVars baseVariables = new EnvVars(systemVariables);
+        addNodePropertiesVariables(Hudson.getInstance().getGlobalNodeProperties(), baseVariables);
+        Node node = computer.getNode();
+        if (node != null) {
+            addNodePropertiesVariables(node.getNodeProperties(), baseVariables);
+        }
+        EnvVars.resolve(baseVariables);
+
+        //The digest is computed once per node connection, the builds share the layer without comparing the variables
+        EnvInjectLayeredVars baseLayer = EnvInjectLayeredVars.shared("node@" + computer.getName(),
+                EnvInjectLayeredVars.digest(baseVariables), baseVariables, systemEnvironment.windows);
+        return new CachedEnvironment(channel, Collections.unmodifiableMap(systemVariables), baseLayer);
+    }
+
+    private void addNodePropertiesVariables(DescribableList<NodeProperty<?>, NodePropertyDescriptor> nodeProperties, EnvVars env) {
+        if (nodeProperties == null) {
+            return;
+        }
+        EnvironmentVariablesNodeProperty property = nodeProperties.get(EnvironmentVariablesNodeProperty.class);
+        if (property != null) {
+            env.putAll(property.getEnvVars());
+        }
+    }
+
+    private static class CachedEnvironment {
+
+        private final VirtualChannel channel;
+
+        private final Map<String, String> systemVariables;
+
+        private final EnvInjectLayeredVars baseVariables;
+
+        private CachedEnvironment(VirtualChannel channel, Map<String, String> systemVariables, EnvInjectLayeredVars baseVariables) {
+            this.channel = channel;
+            this.systemVariables = systemVariables;
+            this.baseVariables = baseVariables;
+        }
+    }
+
+    /**
+     * Gets the system environment of the node JVM and its platform in one remote call
+     */
+    private static class GetSystemEnvironment implements Callable<SystemEnvironment, RuntimeException> {
+
+        public SystemEnvironment call() {
+            return new SystemEnvironment(new EnvVars(EnvVars.masterEnvVars), File.pathSeparatorChar == ';');
+        }
+    }
+
+    private static class SystemEnvironment implements Serializable {
+
+        private final EnvVars variables;
+
+        private final boolean windows;
+
+        private SystemEnvironment(EnvVars variables, boolean windows) {
+            this.variables = variables;
+            this.windows = windows;
+        }
+    }
+}
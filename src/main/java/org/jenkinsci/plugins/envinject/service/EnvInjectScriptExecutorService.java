@@ -2,7 +2,10 @@ package org.jenkinsci.plugins.envinject.service;
 
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.tasks.BatchFile;
 import hudson.tasks.CommandInterpreter;
 import hudson.tasks.Shell;
@@ -12,17 +15,66 @@ import org.jenkinsci.plugins.envinject.EnvInjectLogger;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * @author Gregory Boissinot
  */
 public class EnvInjectScriptExecutorService {
 
+    private static final Logger LOG = Logger.getLogger(EnvInjectScriptExecutorService.class.getName());
+
+    /**
+     * The timeout in seconds of the jobs without script timeout (0 for no timeout)
+     */
+    private static final long DEFAULT_TIMEOUT = Long.getLong(EnvInjectScriptExecutorService.class.getName() + ".defaultTimeout", 0);
+
+    /**
+     * Kills the scripts exceeding their timeout
+     */
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EnvInject script timeout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The maximum size of the environment dumps captured from the script output
+     */
+    private static final int MAX_CAPTURED_BYTES = Integer.getInteger(EnvInjectScriptExecutorService.class.getName() + ".maxCapturedBytes", 1024 * 1024);
+
+    /**
+     * The variables set by the shell itself or by the capture, they are not exported
+     */
+    private static final Set<String> IGNORED_VARIABLES = new HashSet<String>(Arrays.asList("_", "PWD", "OLDPWD", "SHLVL"));
+
+    private static final String CAPTURE_VARIABLE_PREFIX = "__envinject";
+
+    private static final String SCRIPT_CACHE_DIR = "envinject-scripts";
+
+    /**
+     * The environment variable giving the capture marker to the script
+     */
+    private static final String MARKER_VARIABLE = "ENVINJECT_MARKER";
+
+    private static final Pattern DEPENDENCY_SEPARATOR = Pattern.compile("[,\\r\\n]+");
+
     private EnvInjectJobPropertyInfo info;
 
     private Map<String, String> currentEnvVars;
 
+    /**
+     * Only the results of the successful and captured script executions are cached
+     */
+    private boolean scriptResultCacheable;
+
     private FilePath rootScriptExecutionPath;
 
     private Launcher launcher;
@@ -37,63 +89,345 @@ public class EnvInjectScriptExecutorService {
         this.logger = logger;
     }
 
-    public void executeScriptFromInfoObject() throws EnvInjectException {
+    /**
+     * Executes the script file path and the script content
+     *
+     * @return the variables exported by the script content (empty if the capture is not enabled)
+     * @throws EnvInjectException the script can't be executed or exceeded its timeout
+     * @throws InterruptedException the build has been aborted, the script processes are killed
+     */
+    public Map<String, String> executeScriptFromInfoObject() throws EnvInjectException, InterruptedException {
 
         //Process the script file path
         if (info.getScriptFilePath() != null) {
-            String scriptFilePathResolved = Util.replaceMacro(info.getScriptFilePath(), currentEnvVars);
+            String scriptFilePathResolved = info.getScriptFilePathTemplate().expand(currentEnvVars);
             String scriptFilePathNormalized = scriptFilePathResolved.replace("\\", "/");
             executeScriptPath(scriptFilePathNormalized);
         }
 
-        //Process the script content
+        //Process the script content, its result may be cached for the same inputs
         if (info.getScriptContent() != null) {
-            String scriptResolved = Util.replaceMacro(info.getScriptContent(), currentEnvVars);
-            executeScriptContent(scriptResolved);
+            String scriptResolved = info.getScriptContentTemplate().expand(currentEnvVars);
+            long ttl = getScriptResultCacheTtl();
+            if (ttl <= 0 || !info.isCaptureScriptEnvironment()) {
+                return executeScriptContent(scriptResolved);
+            }
+
+            String cacheKey = getScriptResultCacheKey(scriptResolved);
+            EnvInjectScriptResultCache.CachedResult cachedResult = EnvInjectScriptResultCache.getInstance().get(cacheKey);
+            if (cachedResult != null) {
+                logger.info(String.format("The script has been executed with the same inputs %s seconds ago. Its result is taken from the cache.",
+                        (System.currentTimeMillis() - cachedResult.getCreation()) / 1000));
+                return cachedResult.getVariables();
+            }
+            Map<String, String> result = executeScriptContent(scriptResolved);
+            if (scriptResultCacheable) {
+                EnvInjectScriptResultCache.getInstance().put(cacheKey, result, ttl);
+            }
+            return result;
         }
+
+        return Collections.emptyMap();
     }
 
 
-    private void executeScriptPath(String scriptFilePath) throws EnvInjectException {
+    private void executeScriptPath(String scriptFilePath) throws EnvInjectException, InterruptedException {
         try {
             FilePath f = new FilePath(rootScriptExecutionPath, scriptFilePath);
             if (f.exists()) {
                 launcher.getListener().getLogger().println(String.format("Executing '%s' script.", scriptFilePath));
-                int cmdCode = launcher.launch().cmds(new File(scriptFilePath)).stdout(launcher.getListener()).pwd(rootScriptExecutionPath).join();
+                int cmdCode = join(launcher.launch().cmds(new File(scriptFilePath)).stdout(launcher.getListener()).pwd(rootScriptExecutionPath), scriptFilePath);
                 if (cmdCode != 0) {
                     logger.info(String.format("The exit code is '%s'. Fail the build.", cmdCode));
                 }
             } else {
                 logger.info(String.format("Can't load the file '%s'. It doesn't exist.", f.getRemote()));
             }
-        } catch (Throwable e) {
-            throw new EnvInjectException("Error occurs on execution script file path", e);
+        } catch (IOException ioe) {
+            throw new EnvInjectException("Error occurs on execution script file path", ioe);
         }
     }
 
-    private void executeScriptContent(String scriptContent) throws EnvInjectException {
+    /**
+     * Waits for the script process.
+     * The process tree is killed when the script exceeds its timeout or when the build is aborted.
+     * The script has timed out only if the process was still alive when the killer ran.
+     */
+    private int join(Launcher.ProcStarter procStarter, String scriptName) throws EnvInjectException, IOException, InterruptedException {
+        long timeout = getTimeout();
+        long start = System.nanoTime();
+        final Proc proc = procStarter.start();
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> killer = null;
+        if (timeout > 0) {
+            killer = TIMEOUT_SCHEDULER.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        if (proc.isAlive()) {
+                            timedOut.set(true);
+                            proc.kill();
+                        }
+                    } catch (IOException ioe) {
+                        LOG.log(Level.WARNING, "Can't kill the timed out script", ioe);
+                    } catch (InterruptedException ie) {
+                        LOG.log(Level.WARNING, "Can't kill the timed out script", ie);
+                    }
+                }
+            }, timeout, TimeUnit.SECONDS);
+        }
 
         try {
+            int cmdCode = proc.join();
+            if (killer != null && !killer.cancel(false)) {
+                //The killer has started, wait for it to know whether it killed the process
+                try {
+                    killer.get();
+                } catch (ExecutionException ee) {
+                    LOG.log(Level.WARNING, "Can't kill the timed out script", ee.getCause());
+                }
+                if (timedOut.get()) {
+                    EnvInjectMetrics.getInstance().recordScriptTimeout();
+                    throw new EnvInjectException(String.format("The script '%s' has been killed after the timeout of %s seconds.", scriptName, timeout));
+                }
+            }
+            EnvInjectMetrics.getInstance().recordScript(cmdCode, System.nanoTime() - start);
+            return cmdCode;
+        } catch (InterruptedException ie) {
+            //The build is aborted
+            logger.info(String.format("The build is aborted. Killing the script '%s'.", scriptName));
+            proc.kill();
+            throw ie;
+        } finally {
+            if (killer != null) {
+                killer.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return the time to live of the cached script results in milliseconds (0 if the results are not cached)
+     */
+    private long getScriptResultCacheTtl() throws EnvInjectException {
+        String ttl = info.getScriptResultCacheTtl();
+        if (ttl == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(ttl) * 60 * 1000;
+        } catch (NumberFormatException nfe) {
+            throw new EnvInjectException(String.format("The script result cache TTL '%s' is not a number of minutes.", ttl));
+        }
+    }
+
+    /**
+     * Digests the inputs of the script: the resolved script, the referenced variables, the node, the capture
+     * and the content of the declared file dependencies
+     */
+    private String getScriptResultCacheKey(String scriptContent) throws EnvInjectException, InterruptedException {
+        Computer computer = Computer.currentComputer();
+        StringBuilder key = new StringBuilder();
+        key.append("node=").append((computer == null) ? "" : computer.getName()).append('\n');
+        key.append("unix=").append(launcher.isUnix()).append('\n');
+        key.append("capture=").append(info.isCaptureScriptEnvironment()).append('\n');
+        key.append("directory=").append(rootScriptExecutionPath.getRemote()).append('\n');
+        for (String reference : new TreeSet<String>(info.getScriptContentTemplate().getReferences())) {
+            key.append("variable ").append(reference).append('=').append(currentEnvVars.get(reference)).append('\n');
+        }
+        if (info.getScriptCacheDependencies() != null) {
+            String dependencies = EnvInjectTemplate.compile(info.getScriptCacheDependencies()).expand(currentEnvVars);
+            for (String dependency : DEPENDENCY_SEPARATOR.split(dependencies)) {
+                dependency = dependency.trim();
+                if (dependency.length() == 0) {
+                    continue;
+                }
+                try {
+                    FilePath file = new FilePath(rootScriptExecutionPath, dependency.replace("\\", "/"));
+                    key.append("file ").append(dependency).append('=').append(file.exists() ? file.digest() : "missing").append('\n');
+                } catch (IOException ioe) {
+                    throw new EnvInjectException(String.format("Can't digest the script dependency '%s'", dependency), ioe);
+                }
+            }
+        }
+        key.append("script=").append(scriptContent);
+        return Util.getDigestOf(key.toString());
+    }
+
+    private long getTimeout() throws EnvInjectException {
+        String scriptTimeout = info.getScriptTimeout();
+        if (scriptTimeout == null) {
+            return DEFAULT_TIMEOUT;
+        }
+        try {
+            return Long.parseLong(scriptTimeout);
+        } catch (NumberFormatException nfe) {
+            throw new EnvInjectException(String.format("The script timeout '%s' is not a number of seconds.", scriptTimeout));
+        }
+    }
+
+    private Map<String, String> executeScriptContent(String scriptContent) throws EnvInjectException, InterruptedException {
+
+        try {
+
+            //The script prints its environment between marker lines when it starts and when it exits.
+            //The marker is random for each execution, the script output can't forge a block.
+            //It is given in an environment variable, so an identical script is still materialized once
+            String marker = null;
+            String executedScriptContent = scriptContent;
+            if (info.isCaptureScriptEnvironment()) {
+                marker = "ENVINJECT-" + UUID.randomUUID();
+                executedScriptContent = launcher.isUnix() ? getUnixCaptureScript(scriptContent) : getWindowsCaptureScript(scriptContent);
+            }
 
             CommandInterpreter batchRunner;
+            ScriptFileCache scriptFileCache;
             if (launcher.isUnix()) {
-                batchRunner = new Shell(scriptContent);
+                batchRunner = new Shell(executedScriptContent);
+                scriptFileCache = new ScriptFileCache(executedScriptContent.replace("\r\n", "\n"), ".sh");
             } else {
-                batchRunner = new BatchFile(scriptContent);
+                batchRunner = new BatchFile(executedScriptContent);
+                scriptFileCache = new ScriptFileCache(executedScriptContent + "\r\nexit %ERRORLEVEL%", ".bat");
             }
 
-            FilePath tmpFile = batchRunner.createScriptFile(rootScriptExecutionPath);
+            FilePath scriptCacheDir = getScriptCacheDir();
+            FilePath scriptFile = new FilePath(scriptCacheDir.getChannel(), scriptCacheDir.act(scriptFileCache));
             logger.info(String.format("Executing the script: \n %s", scriptContent));
-            int cmdCode = launcher.launch().cmds(batchRunner.buildCommandLine(tmpFile)).stdout(launcher.getListener()).pwd(rootScriptExecutionPath).join();
+
+            EnvInjectCaptureOutputStream captureOutputStream = null;
+            int cmdCode;
+            try {
+                Launcher.ProcStarter procStarter = launcher.launch().cmds(batchRunner.buildCommandLine(scriptFile)).pwd(rootScriptExecutionPath);
+                if (marker != null) {
+                    captureOutputStream = new EnvInjectCaptureOutputStream(launcher.getListener().getLogger(), marker, MAX_CAPTURED_BYTES);
+                    procStarter.envs(MARKER_VARIABLE + "=" + marker).stdout(captureOutputStream);
+                } else {
+                    procStarter.stdout(launcher.getListener());
+                }
+                cmdCode = join(procStarter, scriptFile.getName());
+            } finally {
+                //The cache can evict the script again
+                scriptFile.act(new ScriptFileCache.Release());
+            }
             if (cmdCode != 0) {
                 logger.info(String.format("The exit code is '%s'. Fail the build.", cmdCode));
             }
 
+            if (captureOutputStream == null) {
+                //The script may only run for its side effects, its execution is never skipped
+                scriptResultCacheable = false;
+                return Collections.emptyMap();
+            }
+            captureOutputStream.close();
+            return getExportedVariables(captureOutputStream, cmdCode == 0);
+
         } catch (IOException ioe) {
             throw new EnvInjectException("Error occurs on execution script file path", ioe);
-        } catch (InterruptedException ie) {
-            throw new EnvInjectException("Error occurs on execution script file path", ie);
         }
     }
 
+    /**
+     * The scripts are cached in the node root directory (or in the execution directory when the node has no root)
+     */
+    private FilePath getScriptCacheDir() {
+        Computer computer = Computer.currentComputer();
+        Node node = (computer == null) ? null : computer.getNode();
+        FilePath rootPath = (node == null) ? null : node.getRootPath();
+        return ((rootPath == null) ? rootScriptExecutionPath : rootPath).child(SCRIPT_CACHE_DIR);
+    }
+
+    private String getUnixCaptureScript(String scriptContent) {
+        //Keep the interpreter line on top
+        String interpreterLine = "";
+        String body = scriptContent;
+        if (scriptContent.startsWith("#!")) {
+            int end = scriptContent.indexOf('\n');
+            interpreterLine = (end == -1) ? scriptContent + "\n" : scriptContent.substring(0, end + 1);
+            body = (end == -1) ? "" : scriptContent.substring(end + 1);
+        }
+        String dump = "echo \"$__envinject_marker\"; env; echo \"$__envinject_marker\"";
+        StringBuilder result = new StringBuilder(interpreterLine);
+        //The dumps are not traced even if the shell runs with -x.
+        //The marker is kept in a shell variable, it isn't given to the commands of the script
+        result.append("{ __envinject_flags=$-; set +x; } 2>/dev/null\n");
+        result.append("__envinject_marker=$").append(MARKER_VARIABLE).append("; unset ").append(MARKER_VARIABLE).append("\n");
+        result.append(dump).append("\n");
+        result.append("trap '{ set +x; } 2>/dev/null; ").append(dump).append("' EXIT\n");
+        result.append("case $__envinject_flags in *x*) set -x;; esac\n");
+        result.append(body);
+        return result.toString();
+    }
+
+    private String getWindowsCaptureScript(String scriptContent) {
+        String dump = String.format("@echo %%%s%%\r\n@set\r\n@echo %%%s%%\r\n", MARKER_VARIABLE, MARKER_VARIABLE);
+        StringBuilder result = new StringBuilder(dump);
+        result.append(scriptContent).append("\r\n");
+        result.append("@set __ENVINJECT_RC=%ERRORLEVEL%\r\n");
+        result.append(dump);
+        result.append("@exit /b %__ENVINJECT_RC%\r\n");
+        return result.toString();
+    }
+
+    private Map<String, String> getExportedVariables(EnvInjectCaptureOutputStream captureOutputStream, boolean succeeded) {
+        if (captureOutputStream.isOverflow()) {
+            logger.info(String.format("The script environment exceeds %s bytes. The variables of the script are not captured.", MAX_CAPTURED_BYTES));
+            return Collections.emptyMap();
+        }
+        List<String> blocks = captureOutputStream.getBlocks();
+        if (blocks.size() < 2) {
+            logger.info("The script environment can't be captured. The script may have exited its shell.");
+            return Collections.emptyMap();
+        }
+
+        //Only the variables added or changed by the script are exported
+        Map<String, String> startVariables = parseEnvironment(blocks.get(0));
+        Map<String, String> exitVariables = parseEnvironment(blocks.get(blocks.size() - 1));
+        Map<String, String> result = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : exitVariables.entrySet()) {
+            String key = entry.getKey();
+            if (IGNORED_VARIABLES.contains(key) || key.toLowerCase().startsWith(CAPTURE_VARIABLE_PREFIX)) {
+                continue;
+            }
+            if (!entry.getValue().equals(startVariables.get(key))) {
+                result.put(key, entry.getValue());
+            }
+        }
+        logger.info(String.format("The script exported %s variables.", result.size()));
+        if (logger.isDebugEnabled()) {
+            for (Map.Entry<String, String> entry : result.entrySet()) {
+                String value = info.isSecret(entry.getKey()) ? EnvInjectMaskingOutputStream.MASK : entry.getValue();
+                logger.debug(String.format("The script exported %s=%s", entry.getKey(), value));
+            }
+        }
+        scriptResultCacheable = succeeded;
+        return result;
+    }
+
+    private Map<String, String> parseEnvironment(String block) {
+        Map<String, String> result = new HashMap<String, String>();
+        String currentKey = null;
+        for (String line : block.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            int index = line.indexOf('=');
+            if (index > 0 && isVariableName(line.substring(0, index))) {
+                currentKey = line.substring(0, index);
+                result.put(currentKey, line.substring(index + 1));
+            } else if (currentKey != null) {
+                //Multi-line value
+                result.put(currentKey, result.get(currentKey) + "\n" + line);
+            }
+        }
+        return result;
+    }
+
+    private boolean isVariableName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '(' || c == ')')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
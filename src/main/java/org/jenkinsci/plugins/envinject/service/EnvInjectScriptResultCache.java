@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Master wide cache of the variables exported by the environment scripts, for the jobs opting in.
+ * The results are keyed by a digest of the script inputs and expire after the TTL of the job.
+ * The cache is bounded in entries and in size (characters of the variables), the least recently used results are evicted first.
+ */
+public class EnvInjectScriptResultCache {
+
+    private static final int MAX_ENTRIES = Integer.getInteger(EnvInjectScriptResultCache.class.getName() + ".maxEntries", 128);
+
+    private static final long MAX_SIZE = Long.getLong(EnvInjectScriptResultCache.class.getName() + ".maxSize", 4 * 1024 * 1024);
+
+    private static final String CACHE_NAME = "scriptResults";
+
+    private static final EnvInjectScriptResultCache INSTANCE = new EnvInjectScriptResultCache(MAX_ENTRIES, MAX_SIZE);
+
+    private final int maxEntries;
+
+    private final long maxSize;
+
+    private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+
+    private long size;
+
+    EnvInjectScriptResultCache(int maxEntries, long maxSize) {
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    public static EnvInjectScriptResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param key the digest of the script inputs
+     * @return the cached result or null if none or expired
+     */
+    public synchronized CachedResult get(String key) {
+        CachedResult result = entries.get(key);
+        if (result != null && result.expiration <= System.currentTimeMillis()) {
+            remove(key);
+            result = null;
+        }
+        if (result == null) {
+            EnvInjectMetrics.getInstance().getCache(CACHE_NAME).miss();
+        } else {
+            EnvInjectMetrics.getInstance().getCache(CACHE_NAME).hit();
+        }
+        return result;
+    }
+
+    /**
+     * @param key       the digest of the script inputs
+     * @param variables the variables exported by the script
+     * @param ttl       the time to live in milliseconds
+     */
+    public synchronized void put(String key, Map<String, String> variables, long ttl) {
+        CachedResult result = new CachedResult(variables, System.currentTimeMillis(), ttl);
+        if (result.size > maxSize) {
+            return;
+        }
+        remove(key);
+        entries.put(key, result);
+        size += result.size;
+
+        //Evict the expired results, then the least recently used ones
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedResult> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            CachedResult entry = iterator.next();
+            if (entry.expiration <= now) {
+                size -= entry.size;
+                iterator.remove();
+            }
+        }
+        for (Iterator<CachedResult> iterator = entries.values().iterator(); iterator.hasNext() && (entries.size() > maxEntries || size > maxSize); ) {
+            CachedResult entry = iterator.next();
+            size -= entry.size;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        CachedResult previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.size;
+        }
+    }
+
+    public static class CachedResult {
+
+        private final Map<String, String> variables;
+
+        private final long creation;
+
+        private final long expiration;
+
+        private final long size;
+
+        private CachedResult(Map<String, String> variables, long creation, long ttl) {
+            this.variables = Collections.unmodifiableMap(new HashMap<String, String>(variables));
+            this.creation = creation;
+            this.expiration = creation + ttl;
+            long variablesSize = 0;
+            for (Map.Entry<String, String> entry : variables.entrySet()) {
+                variablesSize += entry.getKey().length() + ((entry.getValue() == null) ? 0 : entry.getValue().length());
+            }
+            this.size = variablesSize;
+        }
+
+        public Map<String, String> getVariables() {
+            return variables;
+        }
+
+        /**
+         * @return the time the script has been executed
+         */
+        public long getCreation() {
+            return creation;
+        }
+    }
+}
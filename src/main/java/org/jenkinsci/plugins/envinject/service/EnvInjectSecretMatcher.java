@@ -0,0 +1,214 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton over the bytes of the secret values.
+ * All the secrets are matched in one pass over the console output, whatever their number:
+ * each byte costs one transition (plus amortized failure transitions).
+ * <p/>
+ * The root state has a dense transition table, the other states keep their transitions sorted by byte.
+ */
+public final class EnvInjectSecretMatcher {
+
+    private static final int ROOT = 0;
+
+    private final int[] rootTransitions = new int[256];
+
+    private byte[][] labels;
+
+    private int[][] targets;
+
+    private int[] failures;
+
+    /**
+     * The depth of each state (the length of the prefix it stands for)
+     */
+    private int[] depths;
+
+    /**
+     * The length of the longest secret ending at each state (0 if none)
+     */
+    private int[] matchLengths;
+
+    private int maxLength;
+
+    /**
+     * @param secrets the secret values
+     * @param charset the charset of the console output
+     */
+    public EnvInjectSecretMatcher(Collection<String> secrets, Charset charset) {
+        //The trie is built in lists then frozen into arrays for the matching
+        List<byte[]> labelList = new ArrayList<byte[]>();
+        List<int[]> targetList = new ArrayList<int[]>();
+        List<Integer> depthList = new ArrayList<Integer>();
+        List<Integer> lengthList = new ArrayList<Integer>();
+        labelList.add(new byte[0]);
+        targetList.add(new int[0]);
+        depthList.add(0);
+        lengthList.add(0);
+
+        for (String secret : secrets) {
+            byte[] bytes = secret.getBytes(charset);
+            if (bytes.length == 0) {
+                continue;
+            }
+            int state = ROOT;
+            for (byte b : bytes) {
+                int next = getChild(labelList, targetList, state, b);
+                if (next == -1) {
+                    next = labelList.size();
+                    labelList.add(new byte[0]);
+                    targetList.add(new int[0]);
+                    depthList.add(depthList.get(state) + 1);
+                    lengthList.add(0);
+                    addChild(labelList, targetList, state, b, next);
+                }
+                state = next;
+            }
+            lengthList.set(state, bytes.length);
+            maxLength = Math.max(maxLength, bytes.length);
+        }
+
+        int stateCount = labelList.size();
+        labels = labelList.toArray(new byte[stateCount][]);
+        targets = targetList.toArray(new int[stateCount][]);
+        depths = new int[stateCount];
+        matchLengths = new int[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            depths[i] = depthList.get(i);
+            matchLengths[i] = lengthList.get(i);
+        }
+        computeFailures();
+    }
+
+    private int getChild(List<byte[]> labelList, List<int[]> targetList, int state, byte b) {
+        if (state == ROOT) {
+            int child = rootTransitions[b & 0xFF];
+            return (child == 0) ? -1 : child;
+        }
+        int index = Arrays.binarySearch(labelList.get(state), b);
+        return (index < 0) ? -1 : targetList.get(state)[index];
+    }
+
+    private void addChild(List<byte[]> labelList, List<int[]> targetList, int state, byte b, int child) {
+        if (state == ROOT) {
+            rootTransitions[b & 0xFF] = child;
+            return;
+        }
+        byte[] stateLabels = labelList.get(state);
+        int[] stateTargets = targetList.get(state);
+        int index = -Arrays.binarySearch(stateLabels, b) - 1;
+        byte[] newLabels = new byte[stateLabels.length + 1];
+        int[] newTargets = new int[stateTargets.length + 1];
+        System.arraycopy(stateLabels, 0, newLabels, 0, index);
+        System.arraycopy(stateTargets, 0, newTargets, 0, index);
+        newLabels[index] = b;
+        newTargets[index] = child;
+        System.arraycopy(stateLabels, index, newLabels, index + 1, stateLabels.length - index);
+        System.arraycopy(stateTargets, index, newTargets, index + 1, stateTargets.length - index);
+        labelList.set(state, newLabels);
+        targetList.set(state, newTargets);
+    }
+
+    private int getChild(int state, byte b) {
+        if (state == ROOT) {
+            int child = rootTransitions[b & 0xFF];
+            return (child == 0) ? -1 : child;
+        }
+        byte[] stateLabels = labels[state];
+        int index = Arrays.binarySearch(stateLabels, b);
+        return (index < 0) ? -1 : targets[state][index];
+    }
+
+    /**
+     * Breadth first computation of the failure links, the match lengths are merged along the links
+     */
+    private void computeFailures() {
+        failures = new int[labels.length];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int b = 0; b < 256; b++) {
+            int child = rootTransitions[b];
+            if (child != 0) {
+                failures[child] = ROOT;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            byte[] stateLabels = labels[state];
+            int[] stateTargets = targets[state];
+            for (int i = 0; i < stateLabels.length; i++) {
+                int child = stateTargets[i];
+                failures[child] = next(failures[state], stateLabels[i]);
+                matchLengths[child] = Math.max(matchLengths[child], matchLengths[failures[child]]);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return the initial state
+     */
+    public int getRoot() {
+        return ROOT;
+    }
+
+    /**
+     * @param state the current state
+     * @param b     the next byte
+     * @return the next state
+     */
+    public int next(int state, byte b) {
+        while (true) {
+            int child = getChild(state, b);
+            if (child != -1) {
+                return child;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = failures[state];
+        }
+    }
+
+    /**
+     * @param b a byte
+     * @return true if a secret starts with this byte
+     */
+    public boolean isStart(byte b) {
+        return rootTransitions[b & 0xFF] != 0;
+    }
+
+    /**
+     * @param state a state
+     * @return the number of the last bytes that may still be part of a secret
+     */
+    public int getDepth(int state) {
+        return depths[state];
+    }
+
+    /**
+     * @param state a state
+     * @return the length of the longest secret ending with the last byte (0 if none)
+     */
+    public int getMatchLength(int state) {
+        return matchLengths[state];
+    }
+
+    /**
+     * @return the length in bytes of the longest secret
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public boolean isEmpty() {
+        return maxLength == 0;
+    }
+}
@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The names of the secret variables, compiled once into their literal parts.
+ * Only '*' is a wildcard (any characters), the rest of a name is literal.
+ * The compiled form is plain strings, it is sent to the nodes as is and is not compiled again there.
+ */
+public final class EnvInjectSecretNames implements Serializable {
+
+    /**
+     * The literal parts of each name, split on '*'
+     */
+    private final String[][] names;
+
+    private EnvInjectSecretNames(String[][] names) {
+        this.names = names;
+    }
+
+    /**
+     * @param secretVariables the names separated by commas or spaces (null for none)
+     * @return the compiled names or null if there is no name
+     */
+    public static EnvInjectSecretNames compile(String secretVariables) {
+        if (secretVariables == null) {
+            return null;
+        }
+        List<String[]> names = new ArrayList<String[]>();
+        for (String name : secretVariables.split("[,\\s]+")) {
+            if (name.length() != 0) {
+                names.add(name.split("\\*", -1));
+            }
+        }
+        return names.isEmpty() ? null : new EnvInjectSecretNames(names.toArray(new String[names.size()][]));
+    }
+
+    /**
+     * @param name a variable name
+     * @return true if the name matches one of the secret names
+     */
+    public boolean matches(String name) {
+        for (String[] parts : names) {
+            if (matches(parts, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String[] parts, String name) {
+        if (parts.length == 1) {
+            return parts[0].equals(name);
+        }
+        //The first part is a prefix, the last part a suffix and the others are found in order between them
+        String first = parts[0];
+        String last = parts[parts.length - 1];
+        if (name.length() < first.length() + last.length() || !name.startsWith(first) || !name.endsWith(last)) {
+            return false;
+        }
+        int position = first.length();
+        int end = name.length() - last.length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            int index = name.indexOf(parts[i], position);
+            if (index == -1 || index + parts[i].length() > end) {
+                return false;
+            }
+            position = index + parts[i].length();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import org.jenkinsci.plugins.envinject.EnvInjectLayeredVars;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of the environment snapshots shared by the build records.
+ * A snapshot is written once in JENKINS_HOME/envInject/snapshots/&lt;digest&gt;.xml
+ * and the build records only keep its digest and their own differences.
+ * The snapshot files are touched when a build uses them, the files not referenced by any build record
+ * and not used recently are deleted by the periodic cleaning.
+ */
+public class EnvInjectSnapshotStore {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectSnapshotStore.class.getName());
+
+    /**
+     * The snapshots smaller than this size are kept inline in the build records
+     */
+    private static final int MIN_SNAPSHOT_SIZE = 16;
+
+    private static final String CACHE_NAME = "snapshots";
+
+    /**
+     * The number of recent snapshots a build environment without shared layer is compared with
+     */
+    private static final int MAX_CANDIDATES = 16;
+
+    private static final EnvInjectSnapshotStore INSTANCE = new EnvInjectSnapshotStore();
+
+    private final Map<String, SoftReference<Map<String, String>>> snapshots = new HashMap<String, SoftReference<Map<String, String>>>();
+
+    private final Map<String, Map<String, String>> candidates = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    /**
+     * The snapshots directory (JENKINS_HOME/envInject/snapshots if null)
+     */
+    private final File snapshotsDir;
+
+    private EnvInjectSnapshotStore() {
+        this(null);
+    }
+
+    EnvInjectSnapshotStore(File snapshotsDir) {
+        this.snapshotsDir = snapshotsDir;
+    }
+
+    public static EnvInjectSnapshotStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Chooses the base snapshot of a build environment.
+     * The shared layer of a layered environment (the node variables) is the natural base,
+     * otherwise the closest recent snapshot is used, or the environment itself becomes a new snapshot.
+     *
+     * @param variables the build environment
+     * @return the digest of the stored snapshot or null if the environment must be kept inline
+     */
+    public String getBase(Map<String, String> variables) {
+        if (variables instanceof EnvInjectLayeredVars) {
+            EnvInjectLayeredVars sharedBase = ((EnvInjectLayeredVars) variables).getSharedBase();
+            if (sharedBase != null && sharedBase.getLayer().size() >= MIN_SNAPSHOT_SIZE) {
+                return store(sharedBase.getLayerDigest(), sharedBase.getLayer());
+            }
+        }
+
+        if (variables.size() < MIN_SNAPSHOT_SIZE) {
+            return null;
+        }
+
+        //Keep the closest snapshot if the differences are less than half of the environment
+        String bestDigest = null;
+        int bestCost = variables.size() / 2;
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, String>> candidate : candidates.entrySet()) {
+                int cost = getDifferenceCount(candidate.getValue(), variables, bestCost);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestDigest = candidate.getKey();
+                }
+            }
+            if (bestDigest != null && touch(bestDigest)) {
+                //Mark it as recently used
+                candidates.get(bestDigest);
+                return bestDigest;
+            }
+        }
+
+        Map<String, String> snapshot = new HashMap<String, String>(variables);
+        return store(EnvInjectLayeredVars.digest(snapshot), snapshot);
+    }
+
+    /**
+     * Gets a snapshot
+     *
+     * @param digest the snapshot digest
+     * @return the unmodifiable snapshot
+     * @throws IOException the snapshot doesn't exist or can't be read (the build records referencing it are corrupt)
+     */
+    public Map<String, String> get(String digest) throws IOException {
+        synchronized (this) {
+            SoftReference<Map<String, String>> reference = snapshots.get(digest);
+            Map<String, String> snapshot = (reference == null) ? null : reference.get();
+            if (snapshot != null) {
+                EnvInjectMetrics.getInstance().getCache(CACHE_NAME).hit();
+                return snapshot;
+            }
+        }
+        EnvInjectMetrics.getInstance().getCache(CACHE_NAME).miss();
+
+        XmlFile xmlFile = getSnapshotFile(digest);
+        @SuppressWarnings("unchecked")
+        Map<String, String> content = xmlFile.exists() ? (Map<String, String>) xmlFile.read() : null;
+        if (content == null) {
+            throw new IOException(String.format("The environment snapshot '%s' doesn't exist.", digest));
+        }
+        Map<String, String> snapshot = Collections.unmodifiableMap(new HashMap<String, String>(content));
+
+        synchronized (this) {
+            snapshots.put(digest, new SoftReference<Map<String, String>>(snapshot));
+            candidates.put(digest, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * The file is checked and written under the lock, the cleaning never deletes a snapshot being stored
+     */
+    private synchronized String store(String digest, Map<String, String> snapshot) {
+        SoftReference<Map<String, String>> reference = snapshots.get(digest);
+        if (reference != null && reference.get() != null && touch(digest)) {
+            candidates.put(digest, reference.get());
+            return digest;
+        }
+
+        Map<String, String> unmodifiableSnapshot = Collections.unmodifiableMap(snapshot);
+        try {
+            XmlFile xmlFile = getSnapshotFile(digest);
+            if (!xmlFile.exists() || !touch(digest)) {
+                xmlFile.write(new TreeMap<String, String>(snapshot));
+            }
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Can't write the environment snapshot. The environment is kept in the build record.", ioe);
+            return null;
+        }
+
+        snapshots.put(digest, new SoftReference<Map<String, String>>(unmodifiableSnapshot));
+        candidates.put(digest, unmodifiableSnapshot);
+        return digest;
+    }
+
+    /**
+     * Marks a snapshot file as used now, it is kept by the next cleaning
+     *
+     * @return false if the file doesn't exist anymore
+     */
+    private boolean touch(String digest) {
+        return getSnapshotFile(digest).getFile().setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the snapshot files not referenced by any build record
+     *
+     * @param referencedDigests the snapshots referenced by the build records
+     * @param minAge            the files used more recently (in milliseconds) are kept, their build may not be indexed yet
+     * @return the number of deleted snapshots
+     */
+    public synchronized int deleteUnreferenced(Set<String> referencedDigests, long minAge) {
+        File[] files = getSnapshotsDir().listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long limit = System.currentTimeMillis() - minAge;
+        int result = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(".xml")) {
+                continue;
+            }
+            String digest = name.substring(0, name.length() - ".xml".length());
+            if (referencedDigests.contains(digest) || file.lastModified() > limit) {
+                continue;
+            }
+            if (file.delete()) {
+                snapshots.remove(digest);
+                candidates.remove(digest);
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private File getSnapshotsDir() {
+        if (snapshotsDir != null) {
+            return snapshotsDir;
+        }
+        return new File(Hudson.getInstance().getRootDir(), "envInject/snapshots");
+    }
+
+    private XmlFile getSnapshotFile(String digest) {
+        return new XmlFile(Hudson.XSTREAM, new File(getSnapshotsDir(), digest + ".xml"));
+    }
+
+    /**
+     * Counts the variables to add, change or remove to get the target from the base (stops above the limit)
+     */
+    private int getDifferenceCount(Map<String, String> base, Map<String, String> target, int limit) {
+        int result = 0;
+        for (Map.Entry<String, String> entry : target.entrySet()) {
+            if (!entry.getValue().equals(base.get(entry.getKey())) && ++result >= limit) {
+                return result;
+            }
+        }
+        for (String key : base.keySet()) {
+            if (!target.containsKey(key) && ++result >= limit) {
+                return result;
+            }
+        }
+        return result;
+    }
+}
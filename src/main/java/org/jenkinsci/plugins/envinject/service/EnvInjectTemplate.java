@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * String with variable references ($VAR or ${VAR}) compiled once into a token list.
+ * Expanding it only looks up the referenced variables, unknown references are left as is.
+ */
+public final class EnvInjectTemplate implements Serializable {
+
+    private static final Pattern REFERENCE = Pattern.compile("\\$([A-Za-z0-9_]+|\\{[A-Za-z0-9_.]+\\})");
+
+    /**
+     * The text between the references (one more element than the references)
+     */
+    private final String[] literals;
+
+    private final String[] references;
+
+    private final String[] rawReferences;
+
+    private EnvInjectTemplate(String[] literals, String[] references, String[] rawReferences) {
+        this.literals = literals;
+        this.references = references;
+        this.rawReferences = rawReferences;
+    }
+
+    public static EnvInjectTemplate compile(String text) {
+        List<String> literals = new ArrayList<String>();
+        List<String> references = new ArrayList<String>();
+        List<String> rawReferences = new ArrayList<String>();
+        Matcher matcher = REFERENCE.matcher(text);
+        int start = 0;
+        while (matcher.find()) {
+            literals.add(text.substring(start, matcher.start()));
+            String reference = matcher.group(1);
+            if (reference.charAt(0) == '{') {
+                reference = reference.substring(1, reference.length() - 1);
+            }
+            references.add(reference);
+            rawReferences.add(matcher.group());
+            start = matcher.end();
+        }
+        literals.add(text.substring(start));
+        return new EnvInjectTemplate(
+                literals.toArray(new String[literals.size()]),
+                references.toArray(new String[references.size()]),
+                rawReferences.toArray(new String[rawReferences.size()]));
+    }
+
+    /**
+     * @return true if the text has no variable reference
+     */
+    public boolean isConstant() {
+        return references.length == 0;
+    }
+
+    public Set<String> getReferences() {
+        return new HashSet<String>(Arrays.asList(references));
+    }
+
+    public String expand(Map<String, String> variables) {
+        if (isConstant()) {
+            return literals[0];
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < references.length; i++) {
+            result.append(literals[i]);
+            String value = variables.get(references[i]);
+            result.append(value != null ? value : rawReferences[i]);
+        }
+        result.append(literals[references.length]);
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return expand(Collections.<String, String>emptyMap());
+    }
+}
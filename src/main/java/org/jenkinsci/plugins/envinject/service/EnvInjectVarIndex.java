@@ -0,0 +1,518 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.model.Hudson;
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inverted index of the injected variables (name, value, builds) over all the jobs.
+ * The variables of the shared snapshots are indexed once per snapshot and the builds only index their differences,
+ * so the index size follows the build specific variables, not the number of builds times the environment size.
+ * <p/>
+ * A build runs with NAME=value if its differences have it,
+ * or if its snapshot has it and the build doesn't override or remove NAME.
+ * <p/>
+ * The values of the secret variables of a build are not indexed: the build is only found by the name of the variable,
+ * a query on the value would let the readers confirm a guessed secret.
+ * <p/>
+ * The index is built in background from the variables files at startup (the build records are not loaded)
+ * and kept up to date when the variables of a build are written or deleted, including while it is built.
+ */
+public class EnvInjectVarIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectVarIndex.class.getName());
+
+    private static final EnvInjectVarIndex INSTANCE = new EnvInjectVarIndex();
+
+    /**
+     * Sorts the build references by job name then by build number
+     */
+    private static final Comparator<String> BUILD_REFERENCE_COMPARATOR = new Comparator<String>() {
+        public int compare(String o1, String o2) {
+            int index1 = o1.lastIndexOf('#');
+            int index2 = o2.lastIndexOf('#');
+            int result = o1.substring(0, index1).compareTo(o2.substring(0, index2));
+            if (result != 0) {
+                return result;
+            }
+            return Integer.valueOf(o1.substring(index1 + 1)).compareTo(Integer.valueOf(o2.substring(index2 + 1)));
+        }
+    };
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * name -> value -> snapshot digests
+     */
+    private final Map<String, Map<String, Set<String>>> snapshotValues = new HashMap<String, Map<String, Set<String>>>();
+
+    /**
+     * snapshot digest -> builds
+     */
+    private final Map<String, Set<String>> snapshotBuilds = new HashMap<String, Set<String>>();
+
+    /**
+     * name -> value -> builds (the build specific variables)
+     */
+    private final Map<String, Map<String, Set<String>>> deltaValues = new HashMap<String, Map<String, Set<String>>>();
+
+    /**
+     * name -> builds overriding or removing the snapshot variable
+     */
+    private final Map<String, Set<String>> shadowedNames = new HashMap<String, Set<String>>();
+
+    /**
+     * name -> builds having a secret variable of this name
+     */
+    private final Map<String, Set<String>> secretBuilds = new HashMap<String, Set<String>>();
+
+    /**
+     * The builds updated or deleted while the initial pass runs (null when no pass runs),
+     * the pass doesn't index their records again
+     */
+    private Set<String> updatedBuilds;
+
+    private volatile boolean ready;
+
+    /**
+     * False if a variables file can't be read, the snapshots it references are unknown
+     */
+    private volatile boolean complete = true;
+
+    public static EnvInjectVarIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return false while the index is built at startup (the queries may miss builds)
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Gets the builds having injected a variable
+     *
+     * @param name  the variable name
+     * @param value the variable value (any value if null)
+     * @return the build references (such as 'folder/job#12') sorted by job then build number
+     */
+    public SortedSet<String> getBuilds(String name, String value) {
+        SortedSet<String> result = new TreeSet<String>(BUILD_REFERENCE_COMPARATOR);
+        lock.readLock().lock();
+        try {
+            Map<String, Set<String>> deltaBuilds = deltaValues.get(name);
+            Map<String, Set<String>> snapshots = snapshotValues.get(name);
+            Set<String> shadowedBuilds = shadowedNames.get(name);
+            Set<String> secretNameBuilds = secretBuilds.get(name);
+            if (deltaBuilds != null) {
+                addMatches(deltaBuilds, value, result);
+            }
+            if (snapshots != null) {
+                Set<String> digests = new HashSet<String>();
+                addMatches(snapshots, value, digests);
+                for (String digest : digests) {
+                    Set<String> builds = snapshotBuilds.get(digest);
+                    if (builds == null) {
+                        continue;
+                    }
+                    for (String build : builds) {
+                        boolean shadowed = shadowedBuilds != null && shadowedBuilds.contains(build);
+                        boolean hidden = value != null && secretNameBuilds != null && secretNameBuilds.contains(build);
+                        if (!shadowed && !hidden) {
+                            result.add(build);
+                        }
+                    }
+                }
+            }
+            if (value == null && secretNameBuilds != null) {
+                result.addAll(secretNameBuilds);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private void addMatches(Map<String, Set<String>> valueMap, String value, Set<String> result) {
+        if (value != null) {
+            Set<String> matches = valueMap.get(value);
+            if (matches != null) {
+                result.addAll(matches);
+            }
+        } else {
+            for (Set<String> matches : valueMap.values()) {
+                result.addAll(matches);
+            }
+        }
+    }
+
+    /**
+     * Replaces the indexed variables of a build
+     *
+     * @param build     the build reference
+     * @param oldRecord the previous variables of the build (null if none)
+     * @param newRecord the new variables of the build (null if deleted)
+     */
+    void update(String build, EnvInjectBuildVarsStore.Record oldRecord, EnvInjectBuildVarsStore.Record newRecord) {
+        apply(build, oldRecord, newRecord, false);
+    }
+
+    /**
+     * Replaces the indexed variables of a build.
+     * The snapshot of the new record is read outside the lock, the queries and the other updates don't wait for the disk.
+     *
+     * @param initial true for a record read by the initial pass, it is skipped if the build has been updated since the pass started
+     */
+    private void apply(String build, EnvInjectBuildVarsStore.Record oldRecord, EnvInjectBuildVarsStore.Record newRecord, boolean initial) {
+        String digest = (newRecord == null) ? null : newRecord.getBaseSnapshot();
+        Map<String, String> snapshot = null;
+        while (true) {
+            lock.writeLock().lock();
+            try {
+                if (initial && updatedBuilds != null && updatedBuilds.contains(build)) {
+                    //The record read by the initial pass is older than the one indexed by the update
+                    return;
+                }
+                if (digest == null || snapshot != null || isIndexed(digest, build, oldRecord)) {
+                    if (!initial && updatedBuilds != null) {
+                        updatedBuilds.add(build);
+                    }
+                    if (oldRecord != null) {
+                        remove(build, oldRecord);
+                    }
+                    if (newRecord != null) {
+                        add(build, newRecord, snapshot);
+                    }
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            snapshot = readSnapshot(build, digest);
+        }
+    }
+
+    /**
+     * @return true if the variables of the snapshot stay indexed once the old record of the build is removed
+     */
+    private boolean isIndexed(String digest, String build, EnvInjectBuildVarsStore.Record oldRecord) {
+        Set<String> builds = snapshotBuilds.get(digest);
+        if (builds == null) {
+            return false;
+        }
+        boolean lastBuild = builds.size() == 1 && builds.contains(build);
+        return !(lastBuild && oldRecord != null && digest.equals(oldRecord.getBaseSnapshot()));
+    }
+
+    private Map<String, String> readSnapshot(String build, String digest) {
+        try {
+            return loadSnapshot(digest);
+        } catch (IOException ioe) {
+            complete = false;
+            LOGGER.log(Level.WARNING, String.format("Can't index the environment snapshot of the build '%s'.", build), ioe);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @param digest the digest of a snapshot
+     * @return the variables of the snapshot
+     */
+    Map<String, String> loadSnapshot(String digest) throws IOException {
+        return EnvInjectSnapshotStore.getInstance().get(digest);
+    }
+
+    /**
+     * @param snapshot the variables of the base snapshot, read if the snapshot is not indexed yet
+     */
+    private void add(String build, EnvInjectBuildVarsStore.Record record, Map<String, String> snapshot) {
+        String digest = record.getBaseSnapshot();
+        if (digest != null) {
+            Set<String> builds = snapshotBuilds.get(digest);
+            if (builds == null) {
+                //First build of the snapshot, index its variables
+                builds = new HashSet<String>();
+                snapshotBuilds.put(digest, builds);
+                for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                    addEntry(snapshotValues, entry.getKey(), entry.getValue(), digest);
+                }
+            }
+            builds.add(build);
+        }
+        for (Map.Entry<String, String> entry : record.getEnvDelta().entrySet()) {
+            if (!record.getSecretNames().contains(entry.getKey())) {
+                addEntry(deltaValues, entry.getKey(), entry.getValue(), build);
+            }
+            addShadowed(entry.getKey(), build);
+        }
+        for (String name : record.getRemovedKeys()) {
+            addShadowed(name, build);
+        }
+        for (String name : record.getSecretNames()) {
+            addName(secretBuilds, name, build);
+        }
+    }
+
+    private void remove(String build, EnvInjectBuildVarsStore.Record record) {
+        String digest = record.getBaseSnapshot();
+        if (digest != null) {
+            Set<String> builds = snapshotBuilds.get(digest);
+            if (builds != null) {
+                builds.remove(build);
+                if (builds.isEmpty()) {
+                    snapshotBuilds.remove(digest);
+                    removeAll(snapshotValues, Collections.singleton(digest));
+                }
+            }
+        }
+        for (Map.Entry<String, String> entry : record.getEnvDelta().entrySet()) {
+            removeEntry(deltaValues, entry.getKey(), entry.getValue(), build);
+            removeShadowed(entry.getKey(), build);
+        }
+        for (String name : record.getRemovedKeys()) {
+            removeShadowed(name, build);
+        }
+        for (String name : record.getSecretNames()) {
+            removeName(secretBuilds, name, build);
+        }
+    }
+
+    /**
+     * @return the digests of the snapshots referenced by the indexed build records
+     */
+    public Set<String> getReferencedSnapshots() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<String>(snapshotBuilds.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the index is built and all the variables files have been read
+     */
+    public boolean isComplete() {
+        return ready && complete;
+    }
+
+    /**
+     * Removes the builds of a deleted or renamed item, a job or a folder (their variables files may not exist anymore)
+     *
+     * @param itemFullName the item full name
+     */
+    public void removeItem(String itemFullName) {
+        String[] prefixes = new String[]{itemFullName + "#", itemFullName + "/"};
+        lock.writeLock().lock();
+        try {
+            Set<String> builds = new HashSet<String>();
+            for (Set<String> snapshotBuildSet : snapshotBuilds.values()) {
+                collectItemBuilds(snapshotBuildSet, prefixes, builds);
+            }
+            for (Map<String, Set<String>> valueMap : deltaValues.values()) {
+                for (Set<String> deltaBuildSet : valueMap.values()) {
+                    collectItemBuilds(deltaBuildSet, prefixes, builds);
+                }
+            }
+            for (Set<String> secretBuildSet : secretBuilds.values()) {
+                collectItemBuilds(secretBuildSet, prefixes, builds);
+            }
+            if (builds.isEmpty()) {
+                return;
+            }
+
+            Set<String> emptySnapshots = new HashSet<String>();
+            for (Map.Entry<String, Set<String>> entry : snapshotBuilds.entrySet()) {
+                entry.getValue().removeAll(builds);
+                if (entry.getValue().isEmpty()) {
+                    emptySnapshots.add(entry.getKey());
+                }
+            }
+            snapshotBuilds.keySet().removeAll(emptySnapshots);
+            removeAll(snapshotValues, emptySnapshots);
+            removeAll(deltaValues, builds);
+            removeAllNames(shadowedNames, builds);
+            removeAllNames(secretBuilds, builds);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void collectItemBuilds(Set<String> builds, String[] prefixes, Set<String> result) {
+        for (String build : builds) {
+            for (String prefix : prefixes) {
+                if (build.startsWith(prefix)) {
+                    result.add(build);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes the variables files of all the builds of a job
+     *
+     * @param job the job
+     */
+    public void addJob(Job<?, ?> job) {
+        File buildDir = job.getBuildDir();
+        File[] dirs = (buildDir == null) ? null : buildDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            try {
+                //Skip the build number links to the build directories
+                if (!dir.isDirectory() || !dir.getCanonicalFile().equals(dir.getAbsoluteFile())) {
+                    continue;
+                }
+                EnvInjectBuildVarsStore.Record record = EnvInjectBuildVarsStore.getInstance().readRecord(dir);
+                if (record != null && record.getBuildNumber() > 0) {
+                    index(getBuildReference(job.getFullName(), record.getBuildNumber()), record);
+                }
+            } catch (IOException ioe) {
+                complete = false;
+                LOGGER.log(Level.WARNING, String.format("Can't index the injected variables of '%s'.", dir), ioe);
+            }
+        }
+    }
+
+    /**
+     * Builds the index from the variables files of all the jobs
+     */
+    @SuppressWarnings("unchecked")
+    public void build() {
+        long start = System.currentTimeMillis();
+        startInitialPass();
+        for (Job job : Hudson.getInstance().getAllItems(Job.class)) {
+            addJob(job);
+        }
+        endInitialPass();
+        LOGGER.info(String.format("The injected variables index has been built in %s ms.", System.currentTimeMillis() - start));
+    }
+
+    void startInitialPass() {
+        lock.writeLock().lock();
+        try {
+            updatedBuilds = new HashSet<String>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void endInitialPass() {
+        lock.writeLock().lock();
+        try {
+            updatedBuilds = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ready = true;
+    }
+
+    /**
+     * Indexes a record read from the disk, unless the build has been updated since it was read
+     *
+     * @param build  the build reference
+     * @param record the variables of the build
+     */
+    void index(String build, EnvInjectBuildVarsStore.Record record) {
+        apply(build, null, record, true);
+    }
+
+    public static String getBuildReference(String jobFullName, int buildNumber) {
+        return jobFullName + "#" + buildNumber;
+    }
+
+    private void addEntry(Map<String, Map<String, Set<String>>> index, String name, String value, String reference) {
+        Map<String, Set<String>> valueMap = index.get(name);
+        if (valueMap == null) {
+            valueMap = new HashMap<String, Set<String>>();
+            index.put(name.intern(), valueMap);
+        }
+        Set<String> references = valueMap.get(value);
+        if (references == null) {
+            references = new HashSet<String>();
+            valueMap.put(value, references);
+        }
+        references.add(reference);
+    }
+
+    private void removeEntry(Map<String, Map<String, Set<String>>> index, String name, String value, String reference) {
+        Map<String, Set<String>> valueMap = index.get(name);
+        if (valueMap == null) {
+            return;
+        }
+        Set<String> references = valueMap.get(value);
+        if (references == null) {
+            return;
+        }
+        references.remove(reference);
+        if (references.isEmpty()) {
+            valueMap.remove(value);
+            if (valueMap.isEmpty()) {
+                index.remove(name);
+            }
+        }
+    }
+
+    private void removeAll(Map<String, Map<String, Set<String>>> index, Set<String> references) {
+        for (Iterator<Map<String, Set<String>>> nameIterator = index.values().iterator(); nameIterator.hasNext(); ) {
+            Map<String, Set<String>> valueMap = nameIterator.next();
+            for (Iterator<Set<String>> valueIterator = valueMap.values().iterator(); valueIterator.hasNext(); ) {
+                Set<String> valueReferences = valueIterator.next();
+                valueReferences.removeAll(references);
+                if (valueReferences.isEmpty()) {
+                    valueIterator.remove();
+                }
+            }
+            if (valueMap.isEmpty()) {
+                nameIterator.remove();
+            }
+        }
+    }
+
+    private void addShadowed(String name, String build) {
+        addName(shadowedNames, name, build);
+    }
+
+    private void removeShadowed(String name, String build) {
+        removeName(shadowedNames, name, build);
+    }
+
+    private void addName(Map<String, Set<String>> index, String name, String build) {
+        Set<String> builds = index.get(name);
+        if (builds == null) {
+            builds = new HashSet<String>();
+            index.put(name.intern(), builds);
+        }
+        builds.add(build);
+    }
+
+    private void removeName(Map<String, Set<String>> index, String name, String build) {
+        Set<String> builds = index.get(name);
+        if (builds != null) {
+            builds.remove(build);
+            if (builds.isEmpty()) {
+                index.remove(name);
+            }
+        }
+    }
+
+    private void removeAllNames(Map<String, Set<String>> index, Set<String> builds) {
+        for (Iterator<Set<String>> iterator = index.values().iterator(); iterator.hasNext(); ) {
+            Set<String> nameBuilds = iterator.next();
+            nameBuilds.removeAll(builds);
+            if (nameBuilds.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+}
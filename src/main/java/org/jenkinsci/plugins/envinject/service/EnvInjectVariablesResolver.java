@@ -0,0 +1,222 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the references ($VAR or ${VAR}) between injected variables.
+ * The references are parsed once into a graph and the variables are expanded in topological order,
+ * so a chain of references is resolved in linear time.
+ * When a new layer is added, only its variables and the variables depending on them are resolved again.
+ * <p/>
+ * A reference to the variable itself (such as PATH=${PATH}:/opt/bin) is the value the variable had before being overridden.
+ * Cycles and unresolved references are left unexpanded and reported as diagnostics.
+ */
+public class EnvInjectVariablesResolver {
+
+    private static final Pattern REFERENCE = Pattern.compile("\\$(?:\\{([A-Za-z0-9_.]+)\\}|([A-Za-z0-9_]+))");
+
+    private static final Integer VISITING = 1;
+
+    private static final Integer RESOLVED = 2;
+
+    /**
+     * The variables the injected variables are resolved against, they are not resolved themselves
+     */
+    private final Map<String, String> baseVariables;
+
+    private final Map<String, String> rawValues = new HashMap<String, String>();
+
+    private final Map<String, String> belowValues = new HashMap<String, String>();
+
+    private final Map<String, String> resolvedValues = new HashMap<String, String>();
+
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    private final Map<String, List<String>> diagnostics = new TreeMap<String, List<String>>();
+
+    /**
+     * @param baseVariables the variables the injected variables are resolved against (such as the system variables)
+     */
+    public EnvInjectVariablesResolver(Map<String, String> baseVariables) {
+        this.baseVariables = baseVariables;
+    }
+
+    /**
+     * Adds a layer of variables overriding the previous ones
+     *
+     * @param layer the variables to add
+     * @return the resolved values of the added variables and of the variables depending on them
+     */
+    public Map<String, String> addLayer(Map<String, String> layer) {
+
+        //Register the changed variables and their references
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, String> entry : layer.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key == null || value == null || value.equals(rawValues.get(key))) {
+                continue;
+            }
+            changed.add(key);
+            belowValues.put(key, rawValues.containsKey(key) ? resolvedValues.get(key) : baseVariables.get(key));
+            rawValues.put(key, value);
+            setReferences(key, value);
+        }
+
+        //Collect the variables to resolve again
+        Set<String> dirty = new HashSet<String>();
+        LinkedList<String> toVisit = new LinkedList<String>(changed);
+        while (!toVisit.isEmpty()) {
+            String key = toVisit.removeFirst();
+            if (dirty.add(key)) {
+                Set<String> keyDependents = dependents.get(key);
+                if (keyDependents != null) {
+                    toVisit.addAll(keyDependents);
+                }
+            }
+        }
+
+        //Resolve them in topological order
+        Map<String, String> result = new HashMap<String, String>();
+        Map<String, Integer> states = new HashMap<String, Integer>();
+        for (String key : dirty) {
+            if (states.get(key) == null) {
+                resolve(key, dirty, states, new ArrayList<String>(), result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the cycles and the unresolved references of the current variables
+     */
+    public List<String> getDiagnostics() {
+        List<String> result = new ArrayList<String>();
+        for (List<String> keyDiagnostics : diagnostics.values()) {
+            result.addAll(keyDiagnostics);
+        }
+        return result;
+    }
+
+    private void setReferences(String key, String value) {
+        Set<String> oldReferences = references.get(key);
+        if (oldReferences != null) {
+            for (String reference : oldReferences) {
+                dependents.get(reference).remove(key);
+            }
+        }
+
+        Set<String> newReferences = new HashSet<String>();
+        Matcher matcher = REFERENCE.matcher(value);
+        while (matcher.find()) {
+            String reference = getReferenceName(matcher);
+            if (!reference.equals(key)) {
+                newReferences.add(reference);
+                Set<String> referenceDependents = dependents.get(reference);
+                if (referenceDependents == null) {
+                    referenceDependents = new HashSet<String>();
+                    dependents.put(reference, referenceDependents);
+                }
+                referenceDependents.add(key);
+            }
+        }
+        references.put(key, newReferences);
+    }
+
+    private void resolve(String key, Set<String> dirty, Map<String, Integer> states, List<String> path, Map<String, String> result) {
+
+        //Iterative depth first traversal, the reference chains can be deeper than the thread stack
+        LinkedList<Frame> stack = new LinkedList<Frame>();
+        stack.addLast(new Frame(key));
+        states.put(key, VISITING);
+        path.add(key);
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.getLast();
+
+            if (frame.references.hasNext()) {
+                String reference = frame.references.next();
+                if (!dirty.contains(reference)) {
+                    continue;
+                }
+                Integer state = states.get(reference);
+                if (state == null) {
+                    stack.addLast(new Frame(reference));
+                    states.put(reference, VISITING);
+                    path.add(reference);
+                } else if (state.equals(VISITING)) {
+                    frame.cyclicReferences.add(reference);
+                    List<String> cycle = new ArrayList<String>(path.subList(path.indexOf(reference), path.size()));
+                    cycle.add(reference);
+                    frame.diagnostics.add(String.format("Cyclic reference between the variables %s", cycle));
+                }
+                continue;
+            }
+
+            //All the references are resolved
+            String value = expand(frame.key, rawValues.get(frame.key), frame.cyclicReferences, frame.diagnostics);
+            resolvedValues.put(frame.key, value);
+            result.put(frame.key, value);
+            if (frame.diagnostics.isEmpty()) {
+                diagnostics.remove(frame.key);
+            } else {
+                diagnostics.put(frame.key, frame.diagnostics);
+            }
+
+            stack.removeLast();
+            path.remove(path.size() - 1);
+            states.put(frame.key, RESOLVED);
+        }
+    }
+
+    private String expand(String key, String rawValue, Set<String> cyclicReferences, List<String> keyDiagnostics) {
+        Matcher matcher = REFERENCE.matcher(rawValue);
+        if (!matcher.find()) {
+            return rawValue;
+        }
+        StringBuffer result = new StringBuffer(rawValue.length());
+        do {
+            String reference = getReferenceName(matcher);
+            String value = null;
+            if (reference.equals(key)) {
+                value = belowValues.get(key);
+            } else if (!cyclicReferences.contains(reference)) {
+                value = rawValues.containsKey(reference) ? resolvedValues.get(reference) : baseVariables.get(reference);
+            }
+            if (value == null) {
+                if (!cyclicReferences.contains(reference)) {
+                    keyDiagnostics.add(String.format("Unresolved reference '%s' in the variable '%s'", reference, key));
+                }
+                value = matcher.group();
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+        } while (matcher.find());
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private String getReferenceName(Matcher matcher) {
+        return (matcher.group(1) != null) ? matcher.group(1) : matcher.group(2);
+    }
+
+    private class Frame {
+
+        private final String key;
+
+        private final Iterator<String> references;
+
+        private final Set<String> cyclicReferences = new HashSet<String>();
+
+        private final List<String> diagnostics = new ArrayList<String>();
+
+        private Frame(String key) {
+            this.key = key;
+            this.references = EnvInjectVariablesResolver.this.references.get(key).iterator();
+        }
+    }
+
+}
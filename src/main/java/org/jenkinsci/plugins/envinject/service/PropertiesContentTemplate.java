@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.EnvInjectException;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * Properties content parsed once when the job is configured or loaded.
+ * Content without variable reference is kept as an immutable map,
+ * otherwise each entry is kept as key and value templates expanded for each build.
+ */
+public final class PropertiesContentTemplate implements Serializable {
+
+    private final Map<String, String> staticVariables;
+
+    private final List<EnvInjectTemplate[]> entries;
+
+    private PropertiesContentTemplate(Map<String, String> staticVariables, List<EnvInjectTemplate[]> entries) {
+        this.staticVariables = staticVariables;
+        this.entries = entries;
+    }
+
+    /**
+     * Parses the properties content
+     *
+     * @param content the properties content
+     * @return the compiled content
+     * @throws EnvInjectException the content has malformed entries
+     */
+    public static PropertiesContentTemplate compile(String content) throws EnvInjectException {
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        try {
+            new PropertiesParser().parse(new StringReader(content), variables);
+        } catch (IOException ioe) {
+            throw new EnvInjectException("Problem occurs on loading content", ioe);
+        }
+
+        List<EnvInjectTemplate[]> entries = new ArrayList<EnvInjectTemplate[]>(variables.size());
+        boolean constant = true;
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            EnvInjectTemplate keyTemplate = EnvInjectTemplate.compile(entry.getKey());
+            EnvInjectTemplate valueTemplate = EnvInjectTemplate.compile(entry.getValue());
+            constant &= keyTemplate.isConstant() && valueTemplate.isConstant();
+            entries.add(new EnvInjectTemplate[]{keyTemplate, valueTemplate});
+        }
+
+        if (constant) {
+            return new PropertiesContentTemplate(Collections.unmodifiableMap(new HashMap<String, String>(variables)), null);
+        }
+        return new PropertiesContentTemplate(null, entries);
+    }
+
+    /**
+     * Gets the variables of the content
+     *
+     * @param currentEnvVars the variables to substitute
+     * @return the variables (unmodifiable when the content has no variable reference)
+     */
+    public Map<String, String> getVariables(Map<String, String> currentEnvVars) {
+        if (staticVariables != null) {
+            return staticVariables;
+        }
+        Map<String, String> result = new HashMap<String, String>();
+        for (EnvInjectTemplate[] entry : entries) {
+            result.put(entry[0].expand(currentEnvVars), entry[1].expand(currentEnvVars));
+        }
+        return result;
+    }
+}
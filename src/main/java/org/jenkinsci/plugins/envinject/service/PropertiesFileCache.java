@@ -0,0 +1,211 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.EnvInjectException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Node wide cache of the parsed properties files.
+ * Entries are keyed by canonical path and encoding, bounded in number with a LRU eviction
+ * and checked against the file modification time and size on each lookup.
+ * On Java 7 and later nodes, a file watcher also invalidates the entries as soon as a file changes.
+ */
+public class PropertiesFileCache {
+
+    private static final Logger LOGGER = Logger.getLogger(PropertiesFileCache.class.getName());
+
+    private static final int MAX_ENTRIES = Integer.getInteger(PropertiesFileCache.class.getName() + ".maxEntries", 64);
+
+    private static final PropertiesFileCache INSTANCE = new PropertiesFileCache(MAX_ENTRIES);
+
+    private final Map<String, CachedFile> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final PropertiesFileWatcher watcher;
+
+    PropertiesFileCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                unwatchIfLast(eldest.getValue());
+                return true;
+            }
+        };
+        this.watcher = createWatcher();
+    }
+
+    public static PropertiesFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    private PropertiesFileWatcher createWatcher() {
+        try {
+            Class.forName("java.nio.file.WatchService");
+        } catch (ClassNotFoundException cnfe) {
+            //Java 6 node, only the modification time and the size are checked
+            return null;
+        }
+        try {
+            return new PropertiesFileWatcher(this);
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Can't watch the cached properties files", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the variables of a properties file, parsed only if the file has changed since the last call
+     *
+     * @param filePath the properties file path
+     * @param encoding the file encoding (the platform encoding if null)
+     * @return the unmodifiable variables (empty if the file doesn't exist)
+     * @throws EnvInjectException
+     */
+    public Map<String, String> getVars(String filePath, String encoding) throws EnvInjectException {
+
+        File file;
+        try {
+            file = new File(filePath).getCanonicalFile();
+        } catch (IOException ioe) {
+            throw new EnvInjectException(String.format("Can't get the canonical path of '%s'", filePath), ioe);
+        }
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+
+        String canonicalPath = file.getPath();
+        String key = canonicalPath + '|' + encoding;
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        CachedFile cachedFile;
+        synchronized (entries) {
+            cachedFile = entries.get(key);
+        }
+        if (cachedFile != null && !cachedFile.stale && cachedFile.lastModified == lastModified && cachedFile.length == length) {
+            hits.incrementAndGet();
+            return cachedFile.variables;
+        }
+        misses.incrementAndGet();
+
+        //The directory is watched before the file is parsed, a change while parsing is notified
+        if (watcher != null) {
+            watcher.watch(file);
+        }
+
+        long generation = invalidations.get();
+        Map<String, String> variables = Collections.unmodifiableMap(new PropertiesFileService().getVarsFromPropertiesFilePath(canonicalPath, encoding));
+        cachedFile = new CachedFile(canonicalPath, lastModified, length, variables);
+        synchronized (entries) {
+            //A change notified while parsing may not be part of the parsed content.
+            //The directory may also have been unwatched by an eviction while parsing, its changes are not notified
+            //and the next lookup parses the file and watches the directory again
+            cachedFile.stale = (generation != invalidations.get()) || (watcher != null && !watcher.isWatched(file));
+            entries.put(key, cachedFile);
+        }
+        return variables;
+    }
+
+    /**
+     * Stops watching the directory of an evicted entry if no other cached file is in it.
+     * Called with the entries lock held.
+     */
+    private void unwatchIfLast(CachedFile evicted) {
+        if (watcher == null) {
+            return;
+        }
+        String directoryPath = new File(evicted.canonicalPath).getParent();
+        for (CachedFile cachedFile : entries.values()) {
+            if (cachedFile != evicted && directoryPath.equals(new File(cachedFile.canonicalPath).getParent())) {
+                return;
+            }
+        }
+        watcher.unwatch(directoryPath);
+    }
+
+    /**
+     * Invalidates the entries of a file
+     *
+     * @param canonicalPath the canonical path of the file
+     */
+    void invalidate(String canonicalPath) {
+        synchronized (entries) {
+            invalidations.incrementAndGet();
+            for (CachedFile cachedFile : entries.values()) {
+                if (cachedFile.canonicalPath.equals(canonicalPath)) {
+                    cachedFile.stale = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidates the entries of all the files of a directory
+     *
+     * @param directoryPath the canonical path of the directory
+     */
+    void invalidateDirectory(String directoryPath) {
+        synchronized (entries) {
+            invalidations.incrementAndGet();
+            for (CachedFile cachedFile : entries.values()) {
+                if (directoryPath.equals(new File(cachedFile.canonicalPath).getParent())) {
+                    cachedFile.stale = true;
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public String getStatistics() {
+        return String.format("%d hits, %d misses, %d cached files", getHits(), getMisses(), getSize());
+    }
+
+    private static class CachedFile {
+
+        private final String canonicalPath;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private final Map<String, String> variables;
+
+        private volatile boolean stale;
+
+        private CachedFile(String canonicalPath, long lastModified, long length, Map<String, String> variables) {
+            this.canonicalPath = canonicalPath;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.variables = variables;
+        }
+    }
+
+}
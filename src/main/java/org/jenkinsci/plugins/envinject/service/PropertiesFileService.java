@@ -4,9 +4,11 @@ package org.jenkinsci.plugins.envinject.service;
 import org.jenkinsci.plugins.envinject.EnvInjectException;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
 
 /**
  * @author Gregory Boissinot
@@ -21,38 +23,64 @@ public class PropertiesFileService implements Serializable {
      * @throws EnvInjectException
      */
     public Map<String, String> getVarsFromPropertiesFilePath(String filePath) throws EnvInjectException {
+        return getVarsFromPropertiesFilePath(filePath, null);
+    }
+
+    /**
+     * Get a map environment variables from a properties file path
+     *
+     * @param filePath
+     * @param encoding the file encoding (the platform encoding if null)
+     * @return
+     * @throws EnvInjectException
+     */
+    public Map<String, String> getVarsFromPropertiesFilePath(String filePath, String encoding) throws EnvInjectException {
+        Map<String, String> result = new HashMap<String, String>();
+        loadVarsFromPropertiesFilePath(filePath, encoding, result);
+        return result;
+    }
+
+    /**
+     * Load the environment variables of a properties file path into the target map
+     *
+     * @param filePath
+     * @param encoding the file encoding (the platform encoding if null)
+     * @param target   the map receiving the variables
+     * @throws EnvInjectException
+     */
+    public void loadVarsFromPropertiesFilePath(String filePath, String encoding, Map<String, String> target) throws EnvInjectException {
 
         if (filePath == null) {
             throw new NullPointerException("The file path object must be set.");
         }
 
-        Map<String, String> result = new HashMap<String, String>();
-
         File f = new File(filePath);
         if (!f.exists()) {
-            return result;
+            return;
         }
-        Properties properties = new Properties();
-        FileReader fileReader = null;
+
+        CharsetDecoder decoder = getCharset(encoding).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        FileInputStream fileInputStream = null;
         try {
-            fileReader = new FileReader(f);
-            properties.load(fileReader);
+            //The file is streamed whatever its size, a mapped file stays locked on Windows until the buffer is collected
+            fileInputStream = new FileInputStream(f);
+            new PropertiesParser().parse(new InputStreamReader(fileInputStream, decoder), target);
         } catch (IOException ioe) {
             throw new EnvInjectException("Problem occurs on loading content", ioe);
+        } catch (EnvInjectException ee) {
+            throw new EnvInjectException(String.format("Problem occurs on loading the properties file '%s'. %s", filePath, ee.getMessage()), ee);
         } finally {
-            if (fileReader != null) {
+            if (fileInputStream != null) {
                 try {
-                    fileReader.close();
+                    fileInputStream.close();
                 } catch (IOException e) {
                     throw new EnvInjectException("Problem occurs on loading content", e);
                 }
             }
         }
-
-        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
-            result.put((String) entry.getKey(), (String) entry.getValue());
-        }
-        return result;
     }
 
     /**
@@ -63,28 +91,43 @@ public class PropertiesFileService implements Serializable {
      * @throws EnvInjectException
      */
     public Map<String, String> getVarsFromPropertiesContent(String fileContent) throws EnvInjectException {
+        Map<String, String> result = new HashMap<String, String>();
+        loadVarsFromPropertiesContent(fileContent, result);
+        return result;
+    }
+
+    /**
+     * Load the environment variables of the content into the target map
+     *
+     * @param fileContent
+     * @param target      the map receiving the variables
+     * @throws EnvInjectException
+     */
+    public void loadVarsFromPropertiesContent(String fileContent, Map<String, String> target) throws EnvInjectException {
 
         if (fileContent == null) {
             throw new NullPointerException("The file content object must be set.");
         }
 
-        Map<String, String> result = new HashMap<String, String>();
-
         StringReader stringReader = new StringReader(fileContent);
-        Properties properties = new Properties();
         try {
-            properties.load(stringReader);
+            new PropertiesParser().parse(stringReader, target);
         } catch (IOException ioe) {
             throw new EnvInjectException("Problem occurs on loading content", ioe);
         } finally {
             stringReader.close();
         }
+    }
 
-        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
-            result.put((String) entry.getKey(), (String) entry.getValue());
+    private Charset getCharset(String encoding) throws EnvInjectException {
+        if (encoding == null) {
+            return Charset.defaultCharset();
+        }
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalArgumentException iae) {
+            throw new EnvInjectException(String.format("The encoding '%s' is not supported", encoding), iae);
         }
-        return result;
     }
 
-
 }
@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the directories of the cached properties files and invalidates the changed files.
+ * Requires a Java 7 node, the class is only loaded by {@link PropertiesFileCache} when it is available.
+ */
+class PropertiesFileWatcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(PropertiesFileWatcher.class.getName());
+
+    private final PropertiesFileCache cache;
+
+    private final WatchService watchService;
+
+    private final ConcurrentMap<Path, WatchKey> directories = new ConcurrentHashMap<Path, WatchKey>();
+
+    PropertiesFileWatcher(PropertiesFileCache cache) throws IOException {
+        this.cache = cache;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this, "EnvInject properties file watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void watch(File file) {
+        Path directory = file.getParentFile().toPath();
+        if (directories.containsKey(directory)) {
+            return;
+        }
+        synchronized (directories) {
+            if (directories.containsKey(directory)) {
+                return;
+            }
+            try {
+                directories.put(directory, directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+            } catch (IOException ioe) {
+                LOGGER.log(Level.FINE, "Can't watch the directory " + directory, ioe);
+            }
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return true if the directory of the file is watched
+     */
+    boolean isWatched(File file) {
+        return directories.containsKey(file.getParentFile().toPath());
+    }
+
+    /**
+     * Stops watching a directory, called when no cached file remains in it
+     *
+     * @param directoryPath the canonical path of the directory
+     */
+    void unwatch(String directoryPath) {
+        synchronized (directories) {
+            WatchKey key = directories.remove(new File(directoryPath).toPath());
+            if (key != null) {
+                key.cancel();
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException ie) {
+                return;
+            } catch (ClosedWatchServiceException cwse) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    cache.invalidateDirectory(directory.toString());
+                } else {
+                    cache.invalidate(directory.resolve((Path) event.context()).toString());
+                }
+            }
+            if (!key.reset()) {
+                //A cancelled key may already have been replaced by a new registration
+                directories.remove(directory, key);
+                cache.invalidateDirectory(directory.toString());
+            }
+        }
+    }
+}
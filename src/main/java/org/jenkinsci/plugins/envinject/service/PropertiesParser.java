@@ -0,0 +1,199 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.EnvInjectException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Single pass parser of the Java properties format.
+ * Entries are put straight into the target map and malformed entries are reported with their line number.
+ * The entries without key are skipped.
+ */
+public class PropertiesParser {
+
+    private static final Logger LOGGER = Logger.getLogger(PropertiesParser.class.getName());
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Parses the properties read from the reader into the target map
+     *
+     * @param reader the properties source (not closed)
+     * @param target the map receiving the entries (an entry overrides the previous one with the same key)
+     * @throws IOException        the reader can't be read
+     * @throws EnvInjectException the content has malformed entries
+     */
+    public void parse(Reader reader, Map<String, String> target) throws IOException, EnvInjectException {
+
+        List<String> errors = new ArrayList<String>();
+        StringBuilder line = new StringBuilder();
+        char[] buffer = new char[BUFFER_SIZE];
+
+        int lineNumber = 1;
+        int entryLineNumber = 1;
+        int trailingBackslashes = 0;
+        boolean lineStart = true;
+        boolean continuation = false;
+        boolean comment = false;
+        boolean precedingCR = false;
+
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+
+                //A '\r\n' sequence is one line terminator
+                if (precedingCR) {
+                    precedingCR = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+
+                if (c == '\r' || c == '\n') {
+                    precedingCR = (c == '\r');
+                    if (!comment && trailingBackslashes % 2 == 1) {
+                        //The logical line continues on the next physical line
+                        line.setLength(line.length() - 1);
+                        continuation = true;
+                    } else {
+                        if (!comment && line.length() != 0) {
+                            addEntry(line, entryLineNumber, target, errors);
+                        }
+                        line.setLength(0);
+                        continuation = false;
+                        comment = false;
+                    }
+                    lineNumber++;
+                    trailingBackslashes = 0;
+                    lineStart = true;
+                    continue;
+                }
+
+                if (lineStart) {
+                    if (isWhitespace(c)) {
+                        continue;
+                    }
+                    lineStart = false;
+                    if (!continuation) {
+                        entryLineNumber = lineNumber;
+                        if (c == '#' || c == '!') {
+                            comment = true;
+                        }
+                    }
+                }
+
+                if (!comment) {
+                    line.append(c);
+                    trailingBackslashes = (c == '\\') ? trailingBackslashes + 1 : 0;
+                }
+            }
+        }
+
+        if (!comment && line.length() != 0) {
+            if (trailingBackslashes % 2 == 1) {
+                line.setLength(line.length() - 1);
+            }
+            addEntry(line, entryLineNumber, target, errors);
+        }
+
+        if (!errors.isEmpty()) {
+            StringBuilder message = new StringBuilder("Malformed properties entries:");
+            for (String error : errors) {
+                message.append("\n").append(error);
+            }
+            throw new EnvInjectException(message.toString());
+        }
+    }
+
+    private void addEntry(CharSequence line, int lineNumber, Map<String, String> target, List<String> errors) {
+
+        int length = line.length();
+
+        //The key ends at the first unescaped separator or whitespace
+        int keyEnd = 0;
+        boolean escaped = false;
+        while (keyEnd < length) {
+            char c = line.charAt(keyEnd);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '=' || c == ':' || isWhitespace(c)) {
+                break;
+            }
+            keyEnd++;
+        }
+
+        //Skip the whitespaces around an optional separator
+        int valueStart = keyEnd;
+        while (valueStart < length && isWhitespace(line.charAt(valueStart))) {
+            valueStart++;
+        }
+        if (valueStart < length && (line.charAt(valueStart) == '=' || line.charAt(valueStart) == ':')) {
+            valueStart++;
+            while (valueStart < length && isWhitespace(line.charAt(valueStart))) {
+                valueStart++;
+            }
+        }
+
+        String key = unescape(line, 0, keyEnd, lineNumber, errors);
+        String value = unescape(line, valueStart, length, lineNumber, errors);
+        if (key == null || value == null) {
+            return;
+        }
+        if (key.length() == 0) {
+            //Properties accepts an empty key but it can't be an environment variable name
+            LOGGER.warning(String.format("line %d: the entry has no key, it is ignored", lineNumber));
+            return;
+        }
+        target.put(key, value);
+    }
+
+    private String unescape(CharSequence line, int start, int end, int lineNumber, List<String> errors) {
+        StringBuilder result = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            char c = line.charAt(i++);
+            if (c == '\\' && i < end) {
+                c = line.charAt(i++);
+                if (c == 'u') {
+                    if (i + 4 > end) {
+                        errors.add(String.format("line %d: malformed \\uxxxx encoding", lineNumber));
+                        return null;
+                    }
+                    int code = 0;
+                    for (int j = 0; j < 4; j++) {
+                        int digit = Character.digit(line.charAt(i++), 16);
+                        if (digit == -1) {
+                            errors.add(String.format("line %d: malformed \\uxxxx encoding", lineNumber));
+                            return null;
+                        }
+                        code = (code << 4) + digit;
+                    }
+                    c = (char) code;
+                } else if (c == 't') {
+                    c = '\t';
+                } else if (c == 'r') {
+                    c = '\r';
+                } else if (c == 'n') {
+                    c = '\n';
+                } else if (c == 'f') {
+                    c = '\f';
+                }
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+
+}
@@ -1,53 +1,214 @@
 package org.jenkinsci.plugins.envinject.service;
 
-import hudson.Util;
 import hudson.remoting.Callable;
+import org.apache.tools.ant.DirectoryScanner;
+import org.jenkinsci.plugins.envinject.EnvInjectException;
 import org.jenkinsci.plugins.envinject.EnvInjectInfo;
 import org.jenkinsci.plugins.envinject.EnvInjectLogger;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
 
 /**
+ * Gets the properties variables on the node.
+ * The properties file path is an ordered list of paths and Ant patterns (such as env/*.properties),
+ * one per line (a comma is part of a path). The relative paths are resolved against the base directory (the workspace) if any.
+ * The files are parsed in parallel and merged in the list order, the files matched by a pattern in path order,
+ * so a later file overrides the variables of the previous ones. The properties content overrides the files.
+ *
  * @author Gregory Boissinot
  */
 public class PropertiesVariablesRetriever implements Callable<Map<String, String>, Throwable> {
 
-    private EnvInjectInfo info;
+    private static final Pattern PATH_SEPARATOR = Pattern.compile("[\\r\\n]+");
+
+    private static final int THREADS = Integer.getInteger(PropertiesVariablesRetriever.class.getName() + ".threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Parses the properties files of the node
+     */
+    private static final ExecutorService PARSER_EXECUTOR = Executors.newFixedThreadPool(Math.max(1, THREADS), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EnvInject properties parser");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //The compiled configuration is sent instead of the info object, so it is not compiled again on the node
+    private EnvInjectTemplate propertiesFilePath;
+
+    private String propertiesFileEncoding;
+
+    private PropertiesContentTemplate propertiesContent;
 
     private Map<String, String> currentEnvVars;
 
+    private String baseDir;
+
+    //Tells the secret variables, their values are not logged (null if there is none)
+    private EnvInjectSecretNames secretNames;
+
     private EnvInjectLogger logger;
 
-    public PropertiesVariablesRetriever(EnvInjectInfo info, Map<String, String> currentEnvVars, EnvInjectLogger logger) {
-        this.info = info;
+    public PropertiesVariablesRetriever(EnvInjectInfo info, Map<String, String> currentEnvVars, EnvInjectLogger logger) throws EnvInjectException {
+        this(info, currentEnvVars, null, logger);
+    }
+
+    /**
+     * @param info           the properties to inject
+     * @param currentEnvVars the variables to substitute in the file paths and in the content
+     * @param baseDir        the directory of the relative file paths (null for the current directory of the node)
+     * @param logger         the build logger
+     */
+    public PropertiesVariablesRetriever(EnvInjectInfo info, Map<String, String> currentEnvVars, String baseDir, EnvInjectLogger logger) throws EnvInjectException {
+        this.propertiesFilePath = info.getPropertiesFilePathTemplate();
+        this.propertiesFileEncoding = info.getPropertiesFileEncoding();
+        this.propertiesContent = info.getPropertiesContentTemplate();
         this.currentEnvVars = currentEnvVars;
+        this.baseDir = baseDir;
+        this.secretNames = info.getSecretNames();
         this.logger = logger;
     }
 
     public Map<String, String> call() throws Throwable {
+        try {
+            return getVariables(currentEnvVars);
+        } finally {
+            logger.flush();
+        }
+    }
 
-        Map<String, String> result = new HashMap<String, String>();
+    /**
+     * Gets the properties variables, on the node
+     *
+     * @param currentEnvVars the variables to substitute in the file paths and in the content
+     * @return the properties variables
+     * @throws EnvInjectException
+     * @throws InterruptedException
+     */
+    public Map<String, String> getVariables(Map<String, String> currentEnvVars) throws EnvInjectException, InterruptedException {
 
-        PropertiesFileService propertiesFileService = new PropertiesFileService();
+        Map<String, String> result = new HashMap<String, String>();
 
-        //Add the properties file
-        if (info.getPropertiesFilePath() != null) {
-            String scriptFilePath = Util.replaceMacro(info.getPropertiesFilePath(), currentEnvVars);
-            scriptFilePath = scriptFilePath.replace("\\", " / ");
-            logger.info(String.format("Injecting as environment variables the properties file path '%s'", scriptFilePath));
-            result.putAll(propertiesFileService.getVarsFromPropertiesFilePath(scriptFilePath));
+        //Add the properties files
+        if (propertiesFilePath != null) {
+            List<File> files = getPropertiesFiles(propertiesFilePath.expand(currentEnvVars));
+            result.putAll(loadPropertiesFiles(files));
+            logger.debug(String.format("Agent properties file cache: %s", PropertiesFileCache.getInstance().getStatistics()));
         }
 
         //Add the properties content
-        if (info.getPropertiesContent() != null) {
-            String fileContent = Util.replaceMacro(info.getPropertiesContent(), currentEnvVars);
-            logger.info(String.format("Injecting as environment variables the properties content \n '%s' \n", fileContent));
-            result.putAll(propertiesFileService.getVarsFromPropertiesContent(fileContent));
+        if (propertiesContent != null) {
+            Map<String, String> contentVariables = propertiesContent.getVariables(currentEnvVars);
+            //The whole content is only logged in debug, it can be large
+            logger.info(String.format("Injecting as environment variables the properties content (%s variables)", contentVariables.size()));
+            if (logger.isDebugEnabled()) {
+                StringBuilder content = new StringBuilder();
+                for (Map.Entry<String, String> entry : contentVariables.entrySet()) {
+                    String value = (secretNames != null && secretNames.matches(entry.getKey())) ? EnvInjectMaskingOutputStream.MASK : entry.getValue();
+                    content.append(entry.getKey()).append("=").append(value).append("\n");
+                }
+                logger.debug(String.format("Properties content \n%s", content));
+            }
+            result.putAll(contentVariables);
         }
 
         return result;
     }
 
+    /**
+     * Expands the paths and the patterns into the ordered list of files
+     */
+    private List<File> getPropertiesFiles(String paths) {
+        List<File> files = new ArrayList<File>();
+        for (String path : PATH_SEPARATOR.split(paths)) {
+            path = path.trim().replace('\\', '/');
+            if (path.length() == 0) {
+                continue;
+            }
+            if (path.indexOf('*') == -1 && path.indexOf('?') == -1) {
+                logger.info(String.format("Injecting as environment variables the properties file path '%s'", path));
+                files.add(resolve(path));
+                continue;
+            }
 
+            //Scan from the last directory before the first wildcard
+            int wildcard = Math.min(index(path, '*'), index(path, '?'));
+            int separator = path.lastIndexOf('/', wildcard);
+            File dir = resolve((separator == -1) ? "." : path.substring(0, separator + 1));
+            String[] matches = new String[0];
+            if (dir.isDirectory()) {
+                DirectoryScanner scanner = new DirectoryScanner();
+                scanner.setBasedir(dir);
+                scanner.setIncludes(new String[]{path.substring(separator + 1)});
+                scanner.scan();
+                matches = scanner.getIncludedFiles();
+                Arrays.sort(matches);
+            }
+            logger.info(String.format("Injecting as environment variables the properties files matching '%s' (%s files)", path, matches.length));
+            for (String match : matches) {
+                logger.debug(String.format("Properties file '%s'", match));
+                files.add(new File(dir, match));
+            }
+        }
+        return files;
+    }
+
+    private int index(String path, char c) {
+        int index = path.indexOf(c);
+        return (index == -1) ? Integer.MAX_VALUE : index;
+    }
+
+    private File resolve(String path) {
+        File file = new File(path);
+        if (file.isAbsolute() || baseDir == null) {
+            return file;
+        }
+        return new File(baseDir, path);
+    }
+
+    /**
+     * Parses the files in parallel and merges them in order
+     */
+    private Map<String, String> loadPropertiesFiles(List<File> files) throws EnvInjectException, InterruptedException {
+        final PropertiesFileCache propertiesFileCache = PropertiesFileCache.getInstance();
+        Map<String, String> result = new HashMap<String, String>();
+        if (files.size() == 1) {
+            result.putAll(propertiesFileCache.getVars(files.get(0).getPath(), propertiesFileEncoding));
+            return result;
+        }
+
+        List<java.util.concurrent.Callable<Map<String, String>>> tasks = new ArrayList<java.util.concurrent.Callable<Map<String, String>>>();
+        for (final File file : files) {
+            tasks.add(new java.util.concurrent.Callable<Map<String, String>>() {
+                public Map<String, String> call() throws EnvInjectException {
+                    return propertiesFileCache.getVars(file.getPath(), propertiesFileEncoding);
+                }
+            });
+        }
+        List<Future<Map<String, String>>> futures = PARSER_EXECUTOR.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                result.putAll(futures.get(i).get());
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof EnvInjectException) {
+                    throw (EnvInjectException) cause;
+                }
+                throw new EnvInjectException(String.format("Can't load the properties file '%s'", files.get(i)), cause);
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,201 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a script into a cache directory of the node, named by the digest of its content.
+ * An identical script is written once and reused by the next builds.
+ * A cached file is only reused if its content is the script content (not a partial or a foreign file),
+ * otherwise it is written again.
+ * The least recently used scripts are deleted when the directory exceeds its number of files or its size.
+ * A script is in use from its writing until its execution is released, the scripts in use are never deleted
+ * (cmd.exe reads the batch files while it runs them).
+ */
+public class ScriptFileCache implements FilePath.FileCallable<String> {
+
+    private static final int MAX_ENTRIES = Integer.getInteger(ScriptFileCache.class.getName() + ".maxEntries", 256);
+
+    private static final long MAX_BYTES = Long.getLong(ScriptFileCache.class.getName() + ".maxBytes", 16 * 1024 * 1024);
+
+    /**
+     * The number of executions using each script file of this node JVM
+     */
+    private static final Map<String, Integer> IN_USE = new HashMap<String, Integer>();
+
+    private final String content;
+
+    private final String fileName;
+
+    /**
+     * @param content       the script content, written with the node default encoding
+     * @param fileExtension the script file extension (such as .sh)
+     */
+    public ScriptFileCache(String content, String fileExtension) {
+        this.content = content;
+        this.fileName = "script-" + Util.getDigestOf(content) + fileExtension;
+    }
+
+    /**
+     * @param cacheDir the cache directory (created if needed)
+     * @return the path of the script file, it is in use until the {@link Release} of its execution
+     */
+    public String invoke(File cacheDir, VirtualChannel channel) throws IOException, InterruptedException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new IOException(String.format("Can't create the script cache directory '%s'.", cacheDir));
+        }
+
+        File scriptFile = new File(cacheDir, fileName);
+        //Acquired before the content is checked, the file can't be evicted once it is checked
+        acquire(scriptFile);
+        boolean written = false;
+        try {
+            byte[] bytes = content.getBytes();
+            if (hasContent(scriptFile, bytes)) {
+                //Mark it as recently used
+                scriptFile.setLastModified(System.currentTimeMillis());
+            } else {
+                write(cacheDir, scriptFile, bytes);
+                evict(cacheDir);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                release(scriptFile);
+            }
+        }
+        return scriptFile.getAbsolutePath();
+    }
+
+    private static void acquire(File scriptFile) {
+        String path = scriptFile.getAbsolutePath();
+        synchronized (IN_USE) {
+            Integer count = IN_USE.get(path);
+            IN_USE.put(path, (count == null) ? 1 : count + 1);
+        }
+    }
+
+    private static void release(File scriptFile) {
+        String path = scriptFile.getAbsolutePath();
+        synchronized (IN_USE) {
+            Integer count = IN_USE.get(path);
+            if (count == null || count <= 1) {
+                IN_USE.remove(path);
+            } else {
+                IN_USE.put(path, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Deletes the file unless it is in use
+     */
+    private static boolean deleteUnused(File file) {
+        synchronized (IN_USE) {
+            return !IN_USE.containsKey(file.getAbsolutePath()) && file.delete();
+        }
+    }
+
+    private void write(File cacheDir, File scriptFile, byte[] bytes) throws IOException {
+        //Write a temporary file then rename it, a concurrent build never sees a partial script
+        File tmpFile = File.createTempFile("script", ".tmp", cacheDir);
+        try {
+            OutputStream outputStream = new FileOutputStream(tmpFile);
+            try {
+                outputStream.write(bytes);
+            } finally {
+                outputStream.close();
+            }
+            if (!tmpFile.renameTo(scriptFile)) {
+                //The target may exist (Windows) or may have been written concurrently
+                if (!hasContent(scriptFile, bytes)) {
+                    scriptFile.delete();
+                    if (!tmpFile.renameTo(scriptFile)) {
+                        throw new IOException(String.format("Can't write the script file '%s'.", scriptFile));
+                    }
+                }
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private boolean hasContent(File file, byte[] bytes) throws IOException {
+        if (!file.isFile() || file.length() != bytes.length) {
+            return false;
+        }
+        byte[] content = new byte[bytes.length];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int count = inputStream.read(content, offset, content.length - offset);
+                if (count == -1) {
+                    return false;
+                }
+                offset += count;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return Arrays.equals(content, bytes);
+    }
+
+    private void evict(File cacheDir) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (files.length <= MAX_ENTRIES && totalBytes <= MAX_BYTES) {
+            return;
+        }
+
+        //Oldest first
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return (lastModified[o1] < lastModified[o2]) ? -1 : ((lastModified[o1] == lastModified[o2]) ? 0 : 1);
+            }
+        });
+
+        int entries = files.length;
+        for (Integer index : order) {
+            if (entries <= MAX_ENTRIES && totalBytes <= MAX_BYTES) {
+                return;
+            }
+            File file = files[index];
+            long length = file.length();
+            if (deleteUnused(file)) {
+                entries--;
+                totalBytes -= length;
+            }
+        }
+    }
+
+    /**
+     * Releases a script file once its execution is over
+     */
+    public static class Release implements FilePath.FileCallable<Void> {
+
+        public Void invoke(File scriptFile, VirtualChannel channel) {
+            release(scriptFile);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.envinject;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectLayeredVarsTest {
+
+    private static Map<String, String> vars(String... keyValues) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], keyValues[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void sharedLayerIsReusedForTheSameDigest() {
+        Map<String, String> variables = vars("PATH", "/bin", "HOME", "/home");
+        String digest = EnvInjectLayeredVars.digest(variables);
+        EnvInjectLayeredVars first = EnvInjectLayeredVars.shared("test@reuse", digest, variables, false);
+        assertSame(first, EnvInjectLayeredVars.shared("test@reuse", digest, variables, false));
+        assertSame(first, EnvInjectLayeredVars.getShared("test@reuse"));
+        assertEquals(digest, first.getLayerDigest());
+
+        Map<String, String> changed = vars("PATH", "/usr/bin", "HOME", "/home");
+        EnvInjectLayeredVars second = EnvInjectLayeredVars.shared("test@reuse", EnvInjectLayeredVars.digest(changed), changed, false);
+        assertNotSame(first, second);
+        assertEquals("/usr/bin", second.get("PATH"));
+    }
+
+    @Test
+    public void overlayOnlyStoresTheChanges() {
+        Map<String, String> system = vars("PATH", "/bin", "HOME", "/home");
+        EnvInjectLayeredVars base = EnvInjectLayeredVars.shared("test@overlay", EnvInjectLayeredVars.digest(system), system, false);
+        EnvInjectLayeredVars view = base.overlay("build", vars("HOME", "/home", "JOB", "a"));
+        assertEquals(Collections.singletonMap("JOB", "a"), view.getLayer());
+        assertEquals(3, view.size());
+        assertSame(base, view.getSharedBase());
+        assertSame(view, view.overlay("same", vars("JOB", "a")));
+        assertEquals(vars("JOB", "b"), view.overlay("change", vars("JOB", "b")).getDelta(base));
+    }
+
+    @Test
+    public void caseSensitiveNames() {
+        Map<String, String> system = vars("Path", "C:\\bin");
+        EnvInjectLayeredVars base = EnvInjectLayeredVars.shared("test@unix", EnvInjectLayeredVars.digest(system), system, false);
+        EnvInjectLayeredVars view = base.overlay("build", vars("PATH", "/opt"));
+        assertEquals("C:\\bin", view.get("Path"));
+        assertEquals("/opt", view.get("PATH"));
+        assertEquals(2, view.size());
+    }
+
+    @Test
+    public void caseInsensitiveNamesOnWindows() {
+        Map<String, String> system = vars("Path", "C:\\bin", "TEMP", "C:\\tmp");
+        EnvInjectLayeredVars base = EnvInjectLayeredVars.shared("test@windows", EnvInjectLayeredVars.digest(system), system, true);
+        EnvInjectLayeredVars view = base.overlay("build", vars("PATH", "C:\\opt"));
+        assertTrue(view.isCaseInsensitive());
+        assertEquals("C:\\opt", view.get("Path"));
+        assertEquals("C:\\opt", view.get("path"));
+        assertEquals(2, view.size());
+        assertEquals("C:\\opt", view.overlay("script", vars("temp", "D:\\tmp")).getDelta(base).get("PATH"));
+        assertEquals("D:\\tmp", view.overlay("script", vars("temp", "D:\\tmp")).get("TEMP"));
+    }
+}
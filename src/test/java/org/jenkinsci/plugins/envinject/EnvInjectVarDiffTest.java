@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.envinject;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectVarDiffTest {
+
+    private static EnvInjectVarList vars(String... keyValues) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], keyValues[i + 1]);
+        }
+        return new EnvInjectVarList(result);
+    }
+
+    private static void assertEntry(EnvInjectVarDiff.Entry entry, String name, String oldValue, String newValue) {
+        assertEquals(name, entry.getName());
+        assertEquals(oldValue, entry.getOldValue());
+        assertEquals(newValue, entry.getNewValue());
+    }
+
+    @Test
+    public void identicalVariables() {
+        EnvInjectVarDiff diff = new EnvInjectVarDiff(vars("A", "1", "B", "2"), vars("B", new String("2"), "A", "1"));
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void addedRemovedAndChanged() {
+        EnvInjectVarDiff diff = new EnvInjectVarDiff(
+                vars("A", "1", "C", "3", "D", "4", "F", "6"),
+                vars("B", "2", "C", "3", "D", "40", "E", "5"));
+        assertFalse(diff.isEmpty());
+
+        List<EnvInjectVarDiff.Entry> added = diff.getAdded();
+        assertEquals(2, added.size());
+        assertEntry(added.get(0), "B", null, "2");
+        assertEntry(added.get(1), "E", null, "5");
+
+        List<EnvInjectVarDiff.Entry> removed = diff.getRemoved();
+        assertEquals(2, removed.size());
+        assertEntry(removed.get(0), "A", "1", null);
+        assertEntry(removed.get(1), "F", "6", null);
+
+        assertEquals(1, diff.getChanged().size());
+        assertEntry(diff.getChanged().get(0), "D", "4", "40");
+    }
+
+    @Test
+    public void emptySides() {
+        EnvInjectVarList empty = new EnvInjectVarList(Collections.<String, String>emptyMap());
+        EnvInjectVarDiff added = new EnvInjectVarDiff(empty, vars("A", "1"));
+        assertEquals(1, added.getAdded().size());
+        assertTrue(added.getRemoved().isEmpty());
+
+        EnvInjectVarDiff removed = new EnvInjectVarDiff(vars("A", "1"), empty);
+        assertEquals(1, removed.getRemoved().size());
+        assertNull(removed.getRemoved().get(0).getNewValue());
+
+        assertTrue(new EnvInjectVarDiff(empty, empty).isEmpty());
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.envinject;
+
+import org.junit.Test;
+
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvInjectVarListKeyFilterTest {
+
+    @Test
+    public void emptyRegexMatchesAllNames() {
+        assertTrue(EnvInjectVarList.KeyFilter.compile(null).matches("PATH"));
+        assertTrue(EnvInjectVarList.KeyFilter.compile("").matches("PATH"));
+    }
+
+    @Test
+    public void findsRegexInNames() {
+        EnvInjectVarList.KeyFilter filter = EnvInjectVarList.KeyFilter.compile("^JAVA_.*HOME$");
+        assertTrue(filter.matches("JAVA_HOME"));
+        assertTrue(filter.matches("JAVA_6_HOME"));
+        assertFalse(filter.matches("MY_JAVA_HOME"));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void rejectsTooLongRegex() {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i <= EnvInjectVarList.KeyFilter.MAX_REGEX_LENGTH; i++) {
+            regex.append('a');
+        }
+        EnvInjectVarList.KeyFilter.compile(regex.toString());
+    }
+
+    @Test
+    public void stopsCatastrophicBacktracking() {
+        EnvInjectVarList.KeyFilter filter = EnvInjectVarList.KeyFilter.compile("^(.*a){20}$", 50);
+        long start = System.currentTimeMillis();
+        try {
+            filter.matches("aaaaaaaaaaaaaaaaaaaaaaaaaaaa!");
+            fail("The match should have timed out");
+        } catch (EnvInjectVarList.KeyFilter.TimeoutException expected) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+}
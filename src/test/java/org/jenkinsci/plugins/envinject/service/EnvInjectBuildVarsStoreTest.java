@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectBuildVarsStoreTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("snapshots", "");
+        dir.delete();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static Map<String, String> vars(String... keyValues) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], keyValues[i + 1]);
+        }
+        return result;
+    }
+
+    private static Map<String, String> legacyEnvMap(int buildNumber) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < 30; i++) {
+            result.put("VAR" + i, "value" + i);
+        }
+        result.put("BUILD_NUMBER", String.valueOf(buildNumber));
+        return result;
+    }
+
+    @Test
+    public void diffKeepsOnlyTheChanges() {
+        Map<String, String> base = vars("PATH", "/bin", "HOME", "/home", "TMP", "/tmp");
+        Map<String, String> variables = vars("PATH", "/opt", "HOME", "/home", "JOB", "a");
+        EnvInjectBuildVarsStore.Record record = EnvInjectBuildVarsStore.diff(3, "digest", base, variables, Collections.singleton("JOB"));
+        assertEquals(3, record.getBuildNumber());
+        assertEquals("digest", record.getBaseSnapshot());
+        assertEquals(vars("PATH", "/opt", "JOB", "a"), record.getEnvDelta());
+        assertEquals(Collections.singleton("TMP"), record.getRemovedKeys());
+        assertEquals(Collections.singleton("JOB"), record.getSecretNames());
+        assertEquals(variables, EnvInjectBuildVarsStore.apply(record, base));
+    }
+
+    @Test
+    public void inlineVariablesRoundTrip() {
+        Map<String, String> variables = vars("A", "1", "B", "");
+        Map<String, String> empty = Collections.emptyMap();
+        EnvInjectBuildVarsStore.Record record = EnvInjectBuildVarsStore.diff(1, null, empty, variables, null);
+        assertNull(record.getBaseSnapshot());
+        assertTrue(record.getRemovedKeys().isEmpty());
+        assertEquals(variables, EnvInjectBuildVarsStore.apply(record, empty));
+    }
+
+    @Test
+    public void legacyEnvMapMigratesToSnapshotAndDelta() throws Exception {
+        EnvInjectSnapshotStore store = new EnvInjectSnapshotStore(dir);
+
+        //The envMap of the first migrated build becomes a snapshot, the next builds only keep their differences
+        Map<String, String> first = legacyEnvMap(1);
+        String digest = store.getBase(first);
+        EnvInjectBuildVarsStore.Record firstRecord = EnvInjectBuildVarsStore.diff(1, digest, store.get(digest), first, null);
+        assertTrue(firstRecord.getEnvDelta().isEmpty());
+
+        Map<String, String> second = legacyEnvMap(2);
+        second.remove("VAR0");
+        assertEquals(digest, store.getBase(second));
+        EnvInjectBuildVarsStore.Record secondRecord = EnvInjectBuildVarsStore.diff(2, digest, store.get(digest), second, null);
+        assertEquals(vars("BUILD_NUMBER", "2"), secondRecord.getEnvDelta());
+        assertEquals(Collections.singleton("VAR0"), secondRecord.getRemovedKeys());
+
+        //The variables read back from a new store are the legacy ones
+        EnvInjectSnapshotStore reloaded = new EnvInjectSnapshotStore(dir);
+        assertEquals(first, EnvInjectBuildVarsStore.apply(firstRecord, reloaded.get(digest)));
+        assertEquals(second, EnvInjectBuildVarsStore.apply(secondRecord, reloaded.get(digest)));
+    }
+}
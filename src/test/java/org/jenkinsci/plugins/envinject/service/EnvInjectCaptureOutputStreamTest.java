@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectCaptureOutputStreamTest {
+
+    private static final String MARKER = "ENVINJECT-1234";
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    private EnvInjectCaptureOutputStream capture(String output, int maxCapturedBytes) throws IOException {
+        EnvInjectCaptureOutputStream stream = new EnvInjectCaptureOutputStream(log, MARKER, maxCapturedBytes);
+        stream.write(output.getBytes());
+        stream.close();
+        return stream;
+    }
+
+    @Test
+    public void forwardsTheOutputWithoutMarker() throws Exception {
+        EnvInjectCaptureOutputStream stream = capture("line 1\nline 2\nlast", 1024);
+        assertEquals("line 1\nline 2\nlast", log.toString());
+        assertTrue(stream.getBlocks().isEmpty());
+    }
+
+    @Test
+    public void capturesTheBlocksOutOfTheLog() throws Exception {
+        EnvInjectCaptureOutputStream stream = capture(MARKER + "\nA=1\n" + MARKER + "\nbuild\n" + MARKER + "\r\nA=2\r\n" + MARKER + "\r\n", 1024);
+        assertEquals("build\n", log.toString());
+        assertEquals(Arrays.asList("A=1\n", "A=2\r\n"), stream.getBlocks());
+        assertFalse(stream.isOverflow());
+    }
+
+    @Test
+    public void markerMustBeTheWholeLine() throws Exception {
+        String output = "echo " + MARKER + "\n" + MARKER + "-suffix\n" + MARKER.substring(1) + "\n";
+        EnvInjectCaptureOutputStream stream = capture(output, 1024);
+        assertEquals(output, log.toString());
+        assertTrue(stream.getBlocks().isEmpty());
+    }
+
+    @Test
+    public void unterminatedBlockIsKept() throws Exception {
+        EnvInjectCaptureOutputStream stream = capture("start\n" + MARKER + "\nA=1\nB=", 1024);
+        assertEquals("start\n", log.toString());
+        assertEquals(Collections.singletonList("A=1\n"), stream.getBlocks());
+    }
+
+    @Test
+    public void bytesOverTheLimitAreDropped() throws Exception {
+        StringBuilder longLine = new StringBuilder("B=");
+        for (int i = 0; i < 100; i++) {
+            longLine.append('x');
+        }
+        EnvInjectCaptureOutputStream stream = capture(MARKER + "\nA=1\n" + longLine + "\nC=3\n" + MARKER + "\nafter\n", 16);
+        assertTrue(stream.isOverflow());
+        assertEquals("after\n", log.toString());
+        assertEquals(Collections.singletonList("A=1\nC=3\n"), stream.getBlocks());
+    }
+
+    @Test
+    public void writesByteByByte() throws Exception {
+        EnvInjectCaptureOutputStream stream = new EnvInjectCaptureOutputStream(log, MARKER, 1024);
+        for (byte b : ("out\n" + MARKER + "\nA=1\n" + MARKER + "\n").getBytes()) {
+            stream.write(b);
+        }
+        stream.close();
+        assertEquals("out\n", log.toString());
+        assertEquals(Collections.singletonList("A=1\n"), stream.getBlocks());
+    }
+}
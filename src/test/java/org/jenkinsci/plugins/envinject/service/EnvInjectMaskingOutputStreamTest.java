@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class EnvInjectMaskingOutputStreamTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String MASK = EnvInjectMaskingOutputStream.MASK;
+
+    private String mask(String text, String... secrets) throws IOException {
+        return mask(text, text.length(), secrets);
+    }
+
+    /**
+     * Writes the text in chunks of the given size
+     */
+    private String mask(String text, int chunkSize, String... secrets) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectMaskingOutputStream stream = new EnvInjectMaskingOutputStream(out, UTF8);
+        stream.addSecrets(Arrays.asList(secrets));
+        byte[] bytes = text.getBytes(UTF8);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            stream.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+        }
+        stream.close();
+        return new String(out.toByteArray(), UTF8);
+    }
+
+    @Test
+    public void noSecret() throws IOException {
+        assertEquals("password=secret", mask("password=secret"));
+    }
+
+    @Test
+    public void singleSecret() throws IOException {
+        assertEquals("password=" + MASK + " done", mask("password=secret done", "secret"));
+    }
+
+    @Test
+    public void shortValuesAreNotMasked() throws IOException {
+        assertEquals("a ab abc", mask("a ab abc", "ab"));
+    }
+
+    @Test
+    public void secretPrefixOfAnotherSecret() throws IOException {
+        assertEquals("x=" + MASK + ";", mask("x=secret123;", "sec", "secret123"));
+        assertEquals("x=" + MASK + ";", mask("x=secret123;", "secret123", "sec"));
+    }
+
+    @Test
+    public void shorterSecretAloneIsMasked() throws IOException {
+        assertEquals("x=" + MASK + "retXYZ", mask("x=secretXYZ", "sec", "secret123"));
+    }
+
+    @Test
+    public void secretContainedInAnotherSecret() throws IOException {
+        assertEquals(MASK, mask("abcd", "abcd", "bc"));
+        assertEquals("[" + MASK + "]", mask("[abcd]", "bcd", "abcd"));
+        assertEquals("a" + MASK + "e", mask("abcde", "bcd", "abcdX"));
+    }
+
+    @Test
+    public void overlappingSecrets() throws IOException {
+        assertEquals("<" + MASK + ">", mask("<abcdef>", "abcd", "cdef"));
+        assertEquals("<" + MASK + ">", mask("<abcabcabca>", "abca"));
+    }
+
+    @Test
+    public void adjacentSecrets() throws IOException {
+        assertEquals(MASK + " " + MASK, mask("foo bar", "foo", "bar"));
+    }
+
+    @Test
+    public void secretSplitAcrossWrites() throws IOException {
+        for (int chunkSize = 1; chunkSize <= 6; chunkSize++) {
+            assertEquals("chunk " + chunkSize, "x=" + MASK + ";y=" + MASK + ";", mask("x=secret123;y=abcd;", chunkSize, "sec", "secret123", "bc", "abcd"));
+        }
+    }
+
+    @Test
+    public void secretSplitAcrossSingleByteWrites() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectMaskingOutputStream stream = new EnvInjectMaskingOutputStream(out, UTF8);
+        stream.addSecrets(Arrays.asList("secret"));
+        for (byte b : "-secret-".getBytes(UTF8)) {
+            stream.write(b);
+        }
+        stream.close();
+        assertEquals("-" + MASK + "-", new String(out.toByteArray(), UTF8));
+    }
+
+    @Test
+    public void heldBytesAreNotFlushed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectMaskingOutputStream stream = new EnvInjectMaskingOutputStream(out, UTF8);
+        stream.addSecrets(Arrays.asList("secret"));
+        stream.write("log secr".getBytes(UTF8));
+        stream.flush();
+        assertEquals("log ", new String(out.toByteArray(), UTF8));
+        stream.write("et".getBytes(UTF8));
+        stream.close();
+        assertEquals("log " + MASK, new String(out.toByteArray(), UTF8));
+    }
+
+    @Test
+    public void incompleteSecretIsWrittenOnClose() throws IOException {
+        assertEquals("secre", mask("secre", "secret"));
+    }
+
+    @Test
+    public void multiByteSecret() throws IOException {
+        assertEquals("k=" + MASK, mask("k=p\u00e4ssw\u00f6rd", "p\u00e4ssw\u00f6rd"));
+    }
+}
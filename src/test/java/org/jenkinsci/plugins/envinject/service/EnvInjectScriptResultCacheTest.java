@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class EnvInjectScriptResultCacheTest {
+
+    private static final long TTL = 60 * 1000;
+
+    private static Map<String, String> vars(String key, String value) {
+        return Collections.singletonMap(key, value);
+    }
+
+    @Test
+    public void cachedResultIsACopy() {
+        EnvInjectScriptResultCache cache = new EnvInjectScriptResultCache(4, 1024);
+        Map<String, String> variables = new HashMap<String, String>(vars("A", "1"));
+        cache.put("key", variables, TTL);
+        variables.put("A", "2");
+
+        EnvInjectScriptResultCache.CachedResult result = cache.get("key");
+        assertEquals(vars("A", "1"), result.getVariables());
+        try {
+            result.getVariables().put("B", "2");
+            fail("The cached variables should be unmodifiable");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertNull(cache.get("other"));
+    }
+
+    @Test
+    public void expiredResultIsRemoved() {
+        EnvInjectScriptResultCache cache = new EnvInjectScriptResultCache(4, 1024);
+        cache.put("key", vars("A", "1"), 0);
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultIsEvicted() {
+        EnvInjectScriptResultCache cache = new EnvInjectScriptResultCache(2, 1024);
+        cache.put("a", vars("A", "1"), TTL);
+        cache.put("b", vars("B", "1"), TTL);
+        cache.get("a");
+        cache.put("c", vars("C", "1"), TTL);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        EnvInjectScriptResultCache cache = new EnvInjectScriptResultCache(8, 10);
+        cache.put("a", vars("A", "1234"), TTL);
+        cache.put("b", vars("B", "1234"), TTL);
+        cache.put("c", vars("C", "1234"), TTL);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        //A result bigger than the cache is not kept
+        cache.put("big", vars("BIG", "12345678"), TTL);
+        assertNull(cache.get("big"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void replacedResultReleasesItsSize() {
+        EnvInjectScriptResultCache cache = new EnvInjectScriptResultCache(8, 10);
+        cache.put("a", vars("A", "1234"), TTL);
+        cache.put("a", vars("A", "5678"), TTL);
+        cache.put("b", vars("B", "1234"), TTL);
+        assertEquals(vars("A", "5678"), cache.get("a").getVariables());
+        assertNotNull(cache.get("b"));
+    }
+}
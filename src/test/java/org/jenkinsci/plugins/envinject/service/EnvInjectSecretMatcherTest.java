@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectSecretMatcherTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * @return the longest match length after each byte of the text
+     */
+    private String matchLengths(EnvInjectSecretMatcher matcher, String text) {
+        StringBuilder result = new StringBuilder();
+        int state = matcher.getRoot();
+        for (byte b : text.getBytes(UTF8)) {
+            state = matcher.next(state, b);
+            result.append(matcher.getMatchLength(state));
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void emptyMatcher() {
+        EnvInjectSecretMatcher matcher = new EnvInjectSecretMatcher(Collections.<String>emptyList(), UTF8);
+        assertTrue(matcher.isEmpty());
+        assertEquals("000", matchLengths(matcher, "abc"));
+    }
+
+    @Test
+    public void matchesAllSecrets() {
+        EnvInjectSecretMatcher matcher = new EnvInjectSecretMatcher(Arrays.asList("he", "she", "his", "hers"), UTF8);
+        assertEquals(4, matcher.getMaxLength());
+        assertEquals("000304", matchLengths(matcher, "ushers"));
+        assertEquals("0003", matchLengths(matcher, "ahis"));
+    }
+
+    @Test
+    public void failureLinksKeepLongestSuffix() {
+        EnvInjectSecretMatcher matcher = new EnvInjectSecretMatcher(Arrays.asList("abcd", "bc"), UTF8);
+        assertEquals("0024", matchLengths(matcher, "abcd"));
+        assertEquals("0020", matchLengths(matcher, "abce"));
+    }
+
+    @Test
+    public void depthIsTheLongestSecretPrefix() {
+        EnvInjectSecretMatcher matcher = new EnvInjectSecretMatcher(Arrays.asList("secret"), UTF8);
+        int state = matcher.getRoot();
+        for (byte b : "xsesec".getBytes(UTF8)) {
+            state = matcher.next(state, b);
+        }
+        assertEquals(3, matcher.getDepth(state));
+        assertTrue(matcher.isStart((byte) 's'));
+        assertFalse(matcher.isStart((byte) 'e'));
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectSecretNamesTest {
+
+    @Test
+    public void noName() {
+        assertNull(EnvInjectSecretNames.compile(null));
+        assertNull(EnvInjectSecretNames.compile(" , "));
+    }
+
+    @Test
+    public void matchesLiteralNames() {
+        EnvInjectSecretNames names = EnvInjectSecretNames.compile("PASSWORD, TOKEN");
+        assertTrue(names.matches("PASSWORD"));
+        assertTrue(names.matches("TOKEN"));
+        assertFalse(names.matches("PASSWORD2"));
+        assertFalse(names.matches("MY_TOKEN"));
+    }
+
+    @Test
+    public void onlyStarIsWildcard() {
+        EnvInjectSecretNames names = EnvInjectSecretNames.compile("*_PASSWORD DB.*.KEY A*B*A");
+        assertTrue(names.matches("_PASSWORD"));
+        assertTrue(names.matches("DB_PASSWORD"));
+        assertTrue(names.matches("DB.main.KEY"));
+        assertTrue(names.matches("DB..KEY"));
+        assertFalse(names.matches("DBxmainxKEY"));
+        assertTrue(names.matches("ABA"));
+        assertTrue(names.matches("AxxBxxA"));
+        assertFalse(names.matches("AB"));
+        assertFalse(names.matches("BA"));
+    }
+
+    @Test
+    public void partsDoNotOverlap() {
+        EnvInjectSecretNames names = EnvInjectSecretNames.compile("AB*BA");
+        assertFalse(names.matches("ABA"));
+        assertTrue(names.matches("ABBA"));
+    }
+
+    @Test
+    public void survivesSerialization() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(EnvInjectSecretNames.compile("*_TOKEN"));
+        out.close();
+        EnvInjectSecretNames names = (EnvInjectSecretNames) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertTrue(names.matches("GITHUB_TOKEN"));
+        assertFalse(names.matches("TOKEN"));
+    }
+}
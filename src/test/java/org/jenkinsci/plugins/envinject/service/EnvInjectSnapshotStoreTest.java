@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.EnvInjectLayeredVars;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvInjectSnapshotStoreTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("snapshots", "");
+        dir.delete();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static Map<String, String> vars(String prefix, int count) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            result.put("VAR" + i, prefix + i);
+        }
+        return result;
+    }
+
+    @Test
+    public void smallEnvironmentIsKeptInline() {
+        assertNull(new EnvInjectSnapshotStore(dir).getBase(vars("a", 3)));
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void snapshotIsWrittenAndReadBack() throws Exception {
+        Map<String, String> variables = vars("a", 20);
+        String digest = new EnvInjectSnapshotStore(dir).getBase(variables);
+        assertEquals(EnvInjectLayeredVars.digest(variables), digest);
+        assertTrue(new File(dir, digest + ".xml").isFile());
+        assertEquals(variables, new EnvInjectSnapshotStore(dir).get(digest));
+    }
+
+    @Test
+    public void closeEnvironmentReusesTheSnapshot() {
+        EnvInjectSnapshotStore store = new EnvInjectSnapshotStore(dir);
+        Map<String, String> variables = vars("a", 20);
+        String digest = store.getBase(variables);
+
+        Map<String, String> close = new HashMap<String, String>(variables);
+        close.put("VAR0", "changed");
+        close.put("BUILD_NUMBER", "2");
+        assertEquals(digest, store.getBase(close));
+
+        String other = store.getBase(vars("b", 20));
+        assertFalse(digest.equals(other));
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void sharedLayerIsTheSnapshot() throws Exception {
+        Map<String, String> system = vars("s", 20);
+        EnvInjectLayeredVars base = EnvInjectLayeredVars.shared("test@snapshot", EnvInjectLayeredVars.digest(system), system, false);
+        EnvInjectLayeredVars build = base.overlay("build", Collections.singletonMap("JOB_NAME", "job"));
+        EnvInjectSnapshotStore store = new EnvInjectSnapshotStore(dir);
+        assertEquals(base.getLayerDigest(), store.getBase(build));
+        assertEquals(system, store.get(base.getLayerDigest()));
+    }
+
+    @Test
+    public void missingSnapshotIsAnError() {
+        try {
+            new EnvInjectSnapshotStore(dir).get("missing");
+            fail("A missing snapshot should be reported");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("missing"));
+        }
+    }
+
+    @Test
+    public void onlyUnreferencedOldSnapshotsAreDeleted() {
+        EnvInjectSnapshotStore store = new EnvInjectSnapshotStore(dir);
+        String kept = store.getBase(vars("a", 20));
+        String deleted = store.getBase(vars("b", 20));
+        long past = System.currentTimeMillis() - 60 * 1000;
+        new File(dir, kept + ".xml").setLastModified(past);
+        new File(dir, deleted + ".xml").setLastModified(past);
+        String recent = store.getBase(vars("c", 20));
+
+        assertEquals(1, store.deleteUnreferenced(Collections.singleton(kept), 10 * 1000));
+        assertTrue(new File(dir, kept + ".xml").exists());
+        assertFalse(new File(dir, deleted + ".xml").exists());
+        assertTrue(new File(dir, recent + ".xml").exists());
+    }
+}
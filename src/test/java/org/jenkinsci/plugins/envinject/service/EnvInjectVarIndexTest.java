@@ -0,0 +1,97 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectVarIndexTest {
+
+    private static class TestIndex extends EnvInjectVarIndex {
+
+        private final Map<String, Map<String, String>> snapshots = new HashMap<String, Map<String, String>>();
+
+        private int loads;
+
+        @Override
+        Map<String, String> loadSnapshot(String digest) throws IOException {
+            loads++;
+            return snapshots.get(digest);
+        }
+    }
+
+    private static EnvInjectBuildVarsStore.Record record(int buildNumber, String baseSnapshot, String... keyValues) {
+        EnvInjectBuildVarsStore.Record record = new EnvInjectBuildVarsStore.Record(buildNumber, baseSnapshot);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            record.getEnvDelta().put(keyValues[i], keyValues[i + 1]);
+        }
+        return record;
+    }
+
+    @Test
+    public void addAndRemoveDelta() {
+        TestIndex index = new TestIndex();
+        EnvInjectBuildVarsStore.Record record = record(1, null, "VERSION", "1.0");
+        index.update("job#1", null, record);
+        assertEquals(Collections.singleton("job#1"), index.getBuilds("VERSION", "1.0"));
+        assertEquals(Collections.singleton("job#1"), index.getBuilds("VERSION", null));
+        assertTrue(index.getBuilds("VERSION", "2.0").isEmpty());
+
+        index.update("job#1", record, null);
+        assertTrue(index.getBuilds("VERSION", null).isEmpty());
+    }
+
+    @Test
+    public void snapshotIsLoadedOnceAndShadowed() {
+        TestIndex index = new TestIndex();
+        index.snapshots.put("digest", Collections.singletonMap("PATH", "/bin"));
+        EnvInjectBuildVarsStore.Record first = record(1, "digest");
+        EnvInjectBuildVarsStore.Record second = record(2, "digest", "PATH", "/opt");
+        index.update("job#1", null, first);
+        index.update("job#2", null, second);
+        assertEquals(1, index.loads);
+        assertEquals(Collections.singleton("job#1"), index.getBuilds("PATH", "/bin"));
+        assertEquals(Collections.singleton("job#2"), index.getBuilds("PATH", "/opt"));
+        assertEquals(Collections.singleton("digest"), index.getReferencedSnapshots());
+
+        index.update("job#1", first, null);
+        index.update("job#2", second, null);
+        assertTrue(index.getBuilds("PATH", null).isEmpty());
+        assertTrue(index.getReferencedSnapshots().isEmpty());
+    }
+
+    @Test
+    public void replacingTheLastRecordOfASnapshotKeepsItsVariables() {
+        TestIndex index = new TestIndex();
+        index.snapshots.put("digest", Collections.singletonMap("PATH", "/bin"));
+        EnvInjectBuildVarsStore.Record first = record(1, "digest");
+        index.update("job#1", null, first);
+        index.update("job#1", first, record(1, "digest", "VERSION", "1.0"));
+        assertEquals(Collections.singleton("job#1"), index.getBuilds("PATH", "/bin"));
+        assertEquals(Collections.singleton("job#1"), index.getBuilds("VERSION", "1.0"));
+    }
+
+    @Test
+    public void initialPassSkipsTheBuildsUpdatedMeanwhile() {
+        TestIndex index = new TestIndex();
+        index.startInitialPass();
+        EnvInjectBuildVarsStore.Record stale = record(1, null, "VERSION", "1.0");
+        index.update("job#1", stale, record(1, null, "VERSION", "2.0"));
+        index.update("job#2", null, null);
+        index.index("job#1", stale);
+        index.index("job#2", record(2, null, "VERSION", "1.0"));
+        index.index("job#3", record(3, null, "VERSION", "1.0"));
+        index.endInitialPass();
+
+        assertTrue(index.isReady());
+        assertEquals(Collections.singleton("job#3"), index.getBuilds("VERSION", "1.0"));
+        assertEquals(Collections.singleton("job#1"), index.getBuilds("VERSION", "2.0"));
+        assertEquals(Arrays.asList("job#1", "job#3"), Arrays.asList(index.getBuilds("VERSION", null).toArray()));
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EnvInjectVariablesResolverTest {
+
+    private static Map<String, String> vars(String... keyValues) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], keyValues[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void resolvesAgainstBaseVariables() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(vars("HOME", "/home/user"));
+        Map<String, String> result = resolver.addLayer(vars("CONF", "$HOME/conf", "DATA", "${HOME}/data"));
+        assertEquals("/home/user/conf", result.get("CONF"));
+        assertEquals("/home/user/data", result.get("DATA"));
+        assertTrue(resolver.getDiagnostics().isEmpty());
+    }
+
+    @Test
+    public void resolvesChainsInAnyOrder() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap());
+        Map<String, String> result = resolver.addLayer(vars("D", "${C}d", "B", "${A}b", "C", "${B}c", "A", "a"));
+        assertEquals("a", result.get("A"));
+        assertEquals("ab", result.get("B"));
+        assertEquals("abc", result.get("C"));
+        assertEquals("abcd", result.get("D"));
+    }
+
+    @Test
+    public void resolvesDeepChainsWithoutRecursion() {
+        Map<String, String> layer = new HashMap<String, String>();
+        layer.put("V0", "x");
+        for (int i = 1; i < 100000; i++) {
+            layer.put("V" + i, "${V" + (i - 1) + "}");
+        }
+        Map<String, String> result = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap()).addLayer(layer);
+        assertEquals("x", result.get("V99999"));
+    }
+
+    @Test
+    public void selfReferenceIsThePreviousValue() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(vars("PATH", "/bin"));
+        assertEquals("/bin:/opt/bin", resolver.addLayer(vars("PATH", "${PATH}:/opt/bin")).get("PATH"));
+        assertEquals("/bin:/opt/bin:/usr/local/bin", resolver.addLayer(vars("PATH", "$PATH:/usr/local/bin")).get("PATH"));
+        assertTrue(resolver.getDiagnostics().isEmpty());
+    }
+
+    @Test
+    public void selfReferenceWithoutPreviousValueIsUnresolved() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap());
+        assertEquals("${OPTS} -v", resolver.addLayer(vars("OPTS", "${OPTS} -v")).get("OPTS"));
+        List<String> diagnostics = resolver.getDiagnostics();
+        assertEquals(1, diagnostics.size());
+        assertEquals("Unresolved reference 'OPTS' in the variable 'OPTS'", diagnostics.get(0));
+    }
+
+    @Test
+    public void leavesCyclesUnexpanded() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap());
+        Map<String, String> result = resolver.addLayer(vars("A", "${B}a", "B", "${C}b", "C", "${A}c", "D", "${A}d"));
+        assertEquals(4, result.size());
+        //Whatever the variable the traversal starts from, the cycle is reported and one reference is kept
+        boolean unexpanded = result.get("A").contains("${") && result.get("B").contains("${") && result.get("C").contains("${");
+        assertTrue(result.toString(), unexpanded);
+        assertTrue(result.get("D").endsWith("ad"));
+        boolean cycleReported = false;
+        for (String diagnostic : resolver.getDiagnostics()) {
+            cycleReported |= diagnostic.startsWith("Cyclic reference between the variables");
+        }
+        assertTrue(resolver.getDiagnostics().toString(), cycleReported);
+    }
+
+    @Test
+    public void reportsUnresolvedReferences() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap());
+        assertEquals("$MISSING/bin", resolver.addLayer(vars("A", "$MISSING/bin")).get("A"));
+        assertEquals(Collections.singletonList("Unresolved reference 'MISSING' in the variable 'A'"), resolver.getDiagnostics());
+
+        //The diagnostic is cleared once the reference is defined
+        Map<String, String> result = resolver.addLayer(vars("MISSING", "/opt"));
+        assertEquals("/opt/bin", result.get("A"));
+        assertTrue(resolver.getDiagnostics().isEmpty());
+    }
+
+    @Test
+    public void resolvesOnlyTheChangedVariablesAndTheirDependents() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap());
+        resolver.addLayer(vars("A", "a", "B", "${A}b", "C", "c"));
+        Map<String, String> result = resolver.addLayer(vars("A", "x", "C", "c"));
+        assertEquals(2, result.size());
+        assertEquals("x", result.get("A"));
+        assertEquals("xb", result.get("B"));
+        assertFalse(result.containsKey("C"));
+    }
+
+    @Test
+    public void overridingRemovesTheOldReferences() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(Collections.<String, String>emptyMap());
+        resolver.addLayer(vars("A", "a", "B", "${A}b"));
+        assertEquals("b", resolver.addLayer(vars("B", "b")).get("B"));
+        Map<String, String> result = resolver.addLayer(vars("A", "x"));
+        assertEquals(1, result.size());
+        assertEquals("x", result.get("A"));
+    }
+
+    @Test
+    public void keepsDollarSignsInValues() {
+        EnvInjectVariablesResolver resolver = new EnvInjectVariablesResolver(vars("PRICE", "$5"));
+        Map<String, String> result = resolver.addLayer(vars("A", "cost: ${PRICE} \\ $ {B}", "B", "b"));
+        assertEquals("cost: $5 \\ $ {B}", result.get("A"));
+    }
+}
@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PropertiesFileCacheTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("properties", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private String write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(content.getBytes("ISO-8859-1"));
+        outputStream.close();
+        return file.getPath();
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws Exception {
+        PropertiesFileCache cache = new PropertiesFileCache(4);
+        assertTrue(cache.getVars(new File(dir, "missing.properties").getPath(), null).isEmpty());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void unchangedFileIsParsedOnce() throws Exception {
+        PropertiesFileCache cache = new PropertiesFileCache(4);
+        String path = write("a.properties", "A=1");
+        Map<String, String> first = cache.getVars(path, null);
+        assertEquals("1", first.get("A"));
+        assertSame(first, cache.getVars(path, null));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void changedFileIsParsedAgain() throws Exception {
+        PropertiesFileCache cache = new PropertiesFileCache(4);
+        String path = write("a.properties", "A=1");
+        cache.getVars(path, null);
+        write("a.properties", "A=22");
+        assertEquals("22", cache.getVars(path, null).get("A"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void encodingIsPartOfTheKey() throws Exception {
+        PropertiesFileCache cache = new PropertiesFileCache(4);
+        String path = write("a.properties", "A=\u00e9");
+        assertEquals("\u00e9", cache.getVars(path, "ISO-8859-1").get("A"));
+        assertEquals("\ufffd", cache.getVars(path, "UTF-8").get("A"));
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedFileIsEvicted() throws Exception {
+        PropertiesFileCache cache = new PropertiesFileCache(2);
+        String a = write("a.properties", "A=1");
+        String b = write("b.properties", "B=1");
+        String c = write("c.properties", "C=1");
+        cache.getVars(a, null);
+        cache.getVars(b, null);
+        cache.getVars(a, null);
+        cache.getVars(c, null);
+        assertEquals(2, cache.getSize());
+        cache.getVars(a, null);
+        assertEquals(2, cache.getHits());
+        cache.getVars(b, null);
+        assertEquals(4, cache.getMisses());
+    }
+}
@@ -0,0 +1,169 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.EnvInjectException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PropertiesParserTest {
+
+    private Map<String, String> parse(String content) throws IOException, EnvInjectException {
+        return parse(new StringReader(content));
+    }
+
+    private Map<String, String> parse(Reader reader) throws IOException, EnvInjectException {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        new PropertiesParser().parse(reader, result);
+        return result;
+    }
+
+    private String parseError(String content) throws IOException {
+        try {
+            parse(content);
+        } catch (EnvInjectException expected) {
+            return expected.getMessage();
+        }
+        fail("The content should have been rejected");
+        return null;
+    }
+
+    @Test
+    public void parsesSeparators() throws Exception {
+        Map<String, String> vars = parse("A=1\nB:2\nC 3\n  D  =  4  \nE\t:\t5");
+        assertEquals("1", vars.get("A"));
+        assertEquals("2", vars.get("B"));
+        assertEquals("3", vars.get("C"));
+        assertEquals("4  ", vars.get("D"));
+        assertEquals("5", vars.get("E"));
+        assertEquals(5, vars.size());
+    }
+
+    @Test
+    public void parsesEmptyValues() throws Exception {
+        Map<String, String> vars = parse("A=\nB\nC =");
+        assertEquals("", vars.get("A"));
+        assertEquals("", vars.get("B"));
+        assertEquals("", vars.get("C"));
+    }
+
+    @Test
+    public void skipsCommentsAndBlankLines() throws Exception {
+        Map<String, String> vars = parse("# comment\n! other comment\n\n   \nA=1\n  # indented comment\\\nB=2");
+        assertEquals(2, vars.size());
+        assertEquals("1", vars.get("A"));
+        assertEquals("2", vars.get("B"));
+    }
+
+    @Test
+    public void laterEntryOverrides() throws Exception {
+        Map<String, String> vars = parse("A=1\nA=2");
+        assertEquals("2", vars.get("A"));
+    }
+
+    @Test
+    public void joinsContinuationLines() throws Exception {
+        Map<String, String> vars = parse("A=one \\\n    two \\\n\tthree\nB=4");
+        assertEquals("one two three", vars.get("A"));
+        assertEquals("4", vars.get("B"));
+    }
+
+    @Test
+    public void evenBackslashesDoNotContinue() throws Exception {
+        Map<String, String> vars = parse("A=c:\\\\\nB=2");
+        assertEquals("c:\\", vars.get("A"));
+        assertEquals("2", vars.get("B"));
+    }
+
+    @Test
+    public void ignoresTrailingBackslashAtEnd() throws Exception {
+        assertEquals("1", parse("A=1\\").get("A"));
+    }
+
+    @Test
+    public void handlesAllLineTerminators() throws Exception {
+        Map<String, String> vars = parse("A=1\r\nB=2\rC=3\nD=4\\\r\n  5");
+        assertEquals("1", vars.get("A"));
+        assertEquals("2", vars.get("B"));
+        assertEquals("3", vars.get("C"));
+        assertEquals("45", vars.get("D"));
+        assertEquals(4, vars.size());
+    }
+
+    @Test
+    public void handlesTerminatorsSplitAcrossReads() throws Exception {
+        //Each read returns a single character, a '\r\n' sequence is split across two reads
+        Reader reader = new StringReader("A=1\r\nB=2\\\r\n  3\r\n") {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(1, length));
+            }
+        };
+        Map<String, String> vars = parse(reader);
+        assertEquals("1", vars.get("A"));
+        assertEquals("23", vars.get("B"));
+        assertEquals(2, vars.size());
+    }
+
+    @Test
+    public void unescapesKeysAndValues() throws Exception {
+        Map<String, String> vars = parse("A\\=B\\:C\\ D=1\nE=\\t\\n\\r\\f\\u0041\\\\\\z");
+        assertEquals("1", vars.get("A=B:C D"));
+        assertEquals("\t\n\r\fA\\z", vars.get("E"));
+    }
+
+    @Test
+    public void matchesJavaProperties() throws Exception {
+        String content = "# header\nPATH = /usr/bin:/bin\nJAVA_OPTS=-Xmx512m \\\n    -Dfile.encoding=UTF-8\n"
+                + "EMPTY=\nKEY\\ WITH\\ SPACES : value\nUNICODE=caf\\u00e9\nWIN=C:\\\\tools\\\\bin\r\n";
+        Properties expected = new Properties();
+        expected.load(new StringReader(content));
+        Map<String, String> vars = parse(content);
+        assertEquals(expected.size(), vars.size());
+        for (String name : expected.stringPropertyNames()) {
+            assertEquals(name, expected.getProperty(name), vars.get(name));
+        }
+    }
+
+    @Test
+    public void skipsEmptyKeys() throws Exception {
+        Map<String, String> vars = parse("A=1\n=2\n  : 3\nB=4");
+        assertEquals(2, vars.size());
+        assertEquals("1", vars.get("A"));
+        assertEquals("4", vars.get("B"));
+    }
+
+    @Test
+    public void rejectsMalformedUnicodeEscapes() throws Exception {
+        String message = parseError("A=1\nB=\\u00g1\nC=\\u12");
+        assertTrue(message, message.contains("line 2: malformed \\uxxxx encoding"));
+        assertTrue(message, message.contains("line 3: malformed \\uxxxx encoding"));
+    }
+
+    @Test
+    public void reportsLineOfContinuedEntry() throws Exception {
+        String message = parseError("A=1\n\nB=\\\n  \\u12");
+        assertTrue(message, message.contains("line 3: malformed \\uxxxx encoding"));
+    }
+
+    @Test
+    public void keepsValidEntriesBeforeError() throws Exception {
+        Map<String, String> target = new HashMap<String, String>();
+        try {
+            new PropertiesParser().parse(new StringReader("A=1\nC=\\u00g1\nB=3"), target);
+            fail("The content should have been rejected");
+        } catch (EnvInjectException expected) {
+            assertEquals("1", target.get("A"));
+            assertEquals("3", target.get("B"));
+        }
+    }
+}
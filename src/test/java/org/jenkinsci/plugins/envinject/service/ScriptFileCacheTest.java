@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptFileCacheTest {
+
+    private File cacheDir;
+
+    @Before
+    public void createCacheDir() throws IOException {
+        cacheDir = File.createTempFile("scripts", "");
+        cacheDir.delete();
+    }
+
+    @After
+    public void deleteCacheDir() {
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    private void createFiles(int count, long lastModified) throws IOException {
+        for (int i = 0; i < count; i++) {
+            File file = new File(cacheDir, "other-" + i);
+            new FileOutputStream(file).close();
+            file.setLastModified(lastModified);
+        }
+    }
+
+    @Test
+    public void identicalScriptIsWrittenOnce() throws Exception {
+        File first = new File(new ScriptFileCache("echo 1", ".sh").invoke(cacheDir, null));
+        File second = new File(new ScriptFileCache("echo 1", ".sh").invoke(cacheDir, null));
+        File other = new File(new ScriptFileCache("echo 2", ".sh").invoke(cacheDir, null));
+        assertEquals(first, second);
+        assertFalse(first.equals(other));
+        assertEquals(6, first.length());
+        assertTrue(first.getName().endsWith(".sh"));
+    }
+
+    @Test
+    public void foreignContentIsWrittenAgain() throws Exception {
+        File script = new File(new ScriptFileCache("echo 1", ".sh").invoke(cacheDir, null));
+        FileOutputStream outputStream = new FileOutputStream(script);
+        outputStream.write("rm -rf".getBytes());
+        outputStream.close();
+        new ScriptFileCache("echo 1", ".sh").invoke(cacheDir, null);
+        assertEquals(6, script.length());
+    }
+
+    @Test
+    public void scriptInUseIsNotEvicted() throws Exception {
+        long now = System.currentTimeMillis();
+        File script = new File(new ScriptFileCache("echo in use", ".bat").invoke(cacheDir, null));
+        script.setLastModified(now - 3600 * 1000);
+        createFiles(300, now - 60 * 1000);
+
+        new ScriptFileCache("echo 1", ".bat").invoke(cacheDir, null);
+        assertTrue(script.exists());
+        assertTrue(cacheDir.listFiles().length <= 256);
+
+        new ScriptFileCache.Release().invoke(script, null);
+        createFiles(300, now - 60 * 1000);
+        new ScriptFileCache("echo 2", ".bat").invoke(cacheDir, null);
+        assertFalse(script.exists());
+    }
+}